@@ -0,0 +1,22 @@
+package edu.uw.cs.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Runs the benchmarks with the gc profiler enabled, so every result reports
+ * allocation rate next to throughput and latency percentiles. Accepts the
+ * usual JMH command line options, e.g.
+ *
+ * java -jar target/benchmarks.jar TransactionBenchmark.book -p flights=1000000
+ */
+public class BenchmarkRunner {
+  public static void main(String[] args) throws Exception {
+    Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,86 @@
+package edu.uw.cs.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The embedded storage backend, created from createTables.sql and seeded with
+ * a synthetic Flights CSV. One database is created per benchmark fork and
+ * shared by all its threads.
+ */
+@State(Scope.Benchmark)
+public class FlightDatabase {
+  /** Path of the schema script, relative to the benchmarks directory */
+  static final String SCHEMA = System.getProperty("flightapp.schema", "../createTables.sql");
+
+  /** Directory of the schema migrations applied on top of it */
+  static final String MIGRATIONS = System.getProperty("flightapp.migrations", "../migrations");
+
+  static final int DAYS = 31;
+
+  private static final String[] CARRIERS = { "AS", "AA", "B6", "DL", "UA", "WN" };
+
+  /** Number of rows in the synthetic Flights table */
+  @Param("100000")
+  public int flights;
+
+  /** Number of distinct cities flights are spread over */
+  @Param("100")
+  public int cities;
+
+  /** Seats per flight; large so repeated bookings do not sell flights out */
+  @Param("1000000")
+  public int capacity;
+
+  /** PBKDF2 rounds per password; lower it to see what creating users costs besides hashing */
+  @Param("65536")
+  public int hashIterations;
+
+  /** Settings passed to Query.openConnection */
+  Properties config;
+
+  @Setup(Level.Trial)
+  public void seed() throws Exception {
+    File csv = File.createTempFile("flights", ".csv");
+    csv.deleteOnExit();
+    writeFlights(csv);
+
+    config = new Properties();
+    config.setProperty("storage.backend", "embedded");
+    config.setProperty("storage.embedded.database", "mem:flights" + System.nanoTime());
+    config.setProperty("storage.embedded.schema", SCHEMA);
+    config.setProperty("schema.migrations_dir", MIGRATIONS);
+    config.setProperty("storage.embedded.flights_csv", csv.getPath());
+    config.setProperty("pool.min_size", "1");
+    config.setProperty("pool.max_size", "16");
+    config.setProperty("hash.iterations", String.valueOf(hashIterations));
+  }
+
+  /**
+   * Name of the i-th synthetic city
+   */
+  String city(int i) {
+    return "City " + Math.floorMod(i, cities);
+  }
+
+  private void writeFlights(File csv) throws IOException {
+    Random random = new Random(414);
+    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv),
+            StandardCharsets.UTF_8)));
+    try {
+      for (int fid = 1; fid <= flights; fid++) {
+        int origin = random.nextInt(cities);
+        int dest = (origin + 1 + random.nextInt(cities - 1)) % cities;
+        out.print(fid + ",7," + (1 + random.nextInt(DAYS)) + ",1," + CARRIERS[random.nextInt(CARRIERS.length)] + ",");
+        out.print((1 + random.nextInt(9999)) + "," + city(origin) + ",WA," + city(dest) + ",MA,0,0,0,");
+        out.print((random.nextInt(100) == 0 ? 1 : 0) + "," + (30 + random.nextInt(400)) + ",1000,");
+        out.println(capacity + "," + (50 + random.nextInt(950)));
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package edu.uw.cs.benchmarks;
+
+import edu.uw.cs.Query;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Helpers that put a Query session into the state a benchmark needs
+ */
+final class Sessions {
+  static final String PASSWORD = "benchmark";
+  static final int BALANCE = 1000000000;
+
+  private static final AtomicInteger users = new AtomicInteger();
+
+  private Sessions() {
+  }
+
+  /**
+   * Opens a session that is not logged in
+   */
+  static Query open(FlightDatabase db) throws SQLException {
+    Query q = new Query();
+    q.openConnection(db.config);
+    return q;
+  }
+
+  /**
+   * A username no user has yet
+   */
+  static String newUsername() {
+    return "u" + users.incrementAndGet();
+  }
+
+  /**
+   * Creates a new user with a large balance and returns its name
+   */
+  static String createUser(Query q) {
+    String username = newUsername();
+    expect(q.transaction_createCustomer(username, PASSWORD, BALANCE), "Created user");
+    return username;
+  }
+
+  /**
+   * Opens a session logged in as a brand new user
+   */
+  static Query loggedIn(FlightDatabase db) throws SQLException {
+    Query q = open(db);
+    return loggedIn(db, createUser(q));
+  }
+
+  /**
+   * Opens a session logged in as an existing user
+   */
+  static Query loggedIn(FlightDatabase db, String username) throws SQLException {
+    Query q = open(db);
+    expect(q.transaction_login(username, PASSWORD), "Logged in");
+    return q;
+  }
+
+  /**
+   * Searches for itineraries on the given day until one is found, so that
+   * "book 0" is valid in this session
+   */
+  static void searchUntilFound(Query q, FlightDatabase db, Random random, int day) {
+    while (true) {
+      int origin = random.nextInt(db.cities);
+      String result = q.transaction_search(db.city(origin), db.city(origin + 1 + random.nextInt(db.cities - 1)),
+              false, day, 5);
+      if (result.startsWith("Itinerary")) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Books an itinerary on the given day and returns its reservation ID
+   */
+  static int book(Query q, FlightDatabase db, Random random, int day) {
+    searchUntilFound(q, db, random, day);
+    String result = expect(q.transaction_book(0), "Booked flight(s), reservation ID: ");
+    return Integer.parseInt(result.substring("Booked flight(s), reservation ID: ".length()).trim());
+  }
+
+  static String expect(String result, String prefix) {
+    if (!result.startsWith(prefix)) {
+      throw new IllegalStateException("Expected '" + prefix + "' but got: " + result);
+    }
+    return result;
+  }
+}
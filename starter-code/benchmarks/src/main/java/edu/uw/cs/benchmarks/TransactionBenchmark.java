@@ -0,0 +1,196 @@
+package edu.uw.cs.benchmarks;
+
+import edu.uw.cs.FlightService;
+import edu.uw.cs.Query;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One benchmark per Query transaction, plus FlightService.execute for the
+ * command parsing and dispatch on top. Each reports throughput and sampled
+ * latency percentiles; BenchmarkRunner adds the gc profiler for allocation
+ * rates.
+ *
+ * Transactions that change state (login, book, pay, cancel) get a fresh
+ * session per invocation, prepared outside the measured region. createBatch
+ * counts each user it creates as one operation, so its throughput compares
+ * directly with create's.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransactionBenchmark {
+  /** Users created per createBatch invocation */
+  static final int CREATE_BATCH = 500;
+
+  /**
+   * A logged-in session with some reservations and a source of random routes
+   */
+  @State(Scope.Thread)
+  public static class Session {
+    /** Reservations held by the session, for the reservations benchmark */
+    @Param("10")
+    public int reservations;
+
+    Query q;
+    Random random = new Random();
+    String[] commands;
+
+    @Setup(Level.Trial)
+    public void setup(FlightDatabase db) throws Exception {
+      String username = Sessions.createUser(Sessions.open(db));
+      q = Sessions.loggedIn(db, username);
+      for (int day = 1; day <= reservations && day <= FlightDatabase.DAYS; day++) {
+        Sessions.book(q, db, random, day);
+      }
+      commands = new String[64];
+      for (int i = 0; i < commands.length; i++) {
+        int origin = random.nextInt(db.cities);
+        commands[i] = "search \"" + db.city(origin) + "\" \"" + db.city(origin + 1 + random.nextInt(db.cities - 1))
+                + "\" 0 " + (1 + random.nextInt(FlightDatabase.DAYS)) + " 10";
+      }
+    }
+
+    String origin(FlightDatabase db) {
+      return db.city(random.nextInt(db.cities));
+    }
+
+    int day() {
+      return 1 + random.nextInt(FlightDatabase.DAYS);
+    }
+  }
+
+  /**
+   * A session that is not logged in yet, for an existing user
+   */
+  @State(Scope.Thread)
+  public static class LoggedOut {
+    Query q;
+    String username;
+
+    @Setup(Level.Trial)
+    public void createUser(FlightDatabase db) throws Exception {
+      username = Sessions.createUser(Sessions.open(db));
+    }
+
+    @Setup(Level.Invocation)
+    public void open(FlightDatabase db) throws Exception {
+      q = Sessions.open(db);
+    }
+  }
+
+  /**
+   * A session that is not logged in and usernames no one has taken yet
+   */
+  @State(Scope.Thread)
+  public static class NewUsers {
+    Query q;
+    String username;
+    String[] usernames = new String[CREATE_BATCH];
+    String[] passwords = new String[CREATE_BATCH];
+    int[] balances = new int[CREATE_BATCH];
+
+    @Setup(Level.Trial)
+    public void open(FlightDatabase db) throws Exception {
+      q = Sessions.open(db);
+      Arrays.fill(passwords, Sessions.PASSWORD);
+      Arrays.fill(balances, Sessions.BALANCE);
+    }
+
+    @Setup(Level.Invocation)
+    public void name() {
+      username = Sessions.newUsername();
+      for (int i = 0; i < usernames.length; i++) {
+        usernames[i] = Sessions.newUsername();
+      }
+    }
+  }
+
+  /**
+   * A logged-in session whose last search returned at least one itinerary
+   */
+  @State(Scope.Thread)
+  public static class Searched {
+    Query q;
+    Random random = new Random();
+
+    @Setup(Level.Invocation)
+    public void search(FlightDatabase db) throws Exception {
+      q = Sessions.loggedIn(db);
+      Sessions.searchUntilFound(q, db, random, 1 + random.nextInt(FlightDatabase.DAYS));
+    }
+  }
+
+  /**
+   * A logged-in session holding one unpaid reservation
+   */
+  @State(Scope.Thread)
+  public static class Booked {
+    Query q;
+    int rid;
+    Random random = new Random();
+
+    @Setup(Level.Invocation)
+    public void book(FlightDatabase db) throws Exception {
+      q = Sessions.loggedIn(db);
+      rid = Sessions.book(q, db, random, 1 + random.nextInt(FlightDatabase.DAYS));
+    }
+  }
+
+  @Benchmark
+  public String execute(Session s) {
+    return FlightService.execute(s.q, s.commands[s.random.nextInt(s.commands.length)]);
+  }
+
+  @Benchmark
+  public String login(LoggedOut s) {
+    return s.q.transaction_login(s.username, Sessions.PASSWORD);
+  }
+
+  @Benchmark
+  public String create(NewUsers s) {
+    return s.q.transaction_createCustomer(s.username, Sessions.PASSWORD, Sessions.BALANCE);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CREATE_BATCH)
+  public String[] createBatch(NewUsers s) {
+    return s.q.transaction_createCustomers(s.usernames, s.passwords, s.balances);
+  }
+
+  @Benchmark
+  public String searchDirect(Session s, FlightDatabase db) {
+    String origin = s.origin(db);
+    return s.q.transaction_search(origin, db.city(s.random.nextInt(db.cities)), true, s.day(), 10);
+  }
+
+  @Benchmark
+  public String searchIndirect(Session s, FlightDatabase db) {
+    String origin = s.origin(db);
+    return s.q.transaction_search(origin, db.city(s.random.nextInt(db.cities)), false, s.day(), 10);
+  }
+
+  @Benchmark
+  public String book(Searched s) {
+    return s.q.transaction_book(0);
+  }
+
+  @Benchmark
+  public String pay(Booked s) {
+    return s.q.transaction_pay(s.rid);
+  }
+
+  @Benchmark
+  public String reservations(Session s) {
+    return s.q.transaction_reservations();
+  }
+
+  @Benchmark
+  public String cancel(Booked s) {
+    return s.q.transaction_cancel(s.rid);
+  }
+}
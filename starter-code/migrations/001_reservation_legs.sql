@@ -0,0 +1,5 @@
+-- Flights of an itinerary after the second; the first two are Reservation.fid1 and fid2
+CREATE TABLE ReservationLegs(rid INT,
+						leg INT,
+						fid INT,
+						PRIMARY KEY (rid, leg));
@@ -0,0 +1,6 @@
+-- Salted PBKDF2 hashes replace plaintext passwords. Existing passwords cannot be
+-- hashed in SQL, so the plaintext column stays: a user without a hash logs in
+-- with it once, and login then stores the hash and clears the plaintext. Drop
+-- the column in a later script once no row has a NULL hash.
+ALTER TABLE Users ADD salt VARBINARY(16);
+ALTER TABLE Users ADD hash VARBINARY(16);
@@ -0,0 +1,7 @@
+-- A user's reservations: listed in rid order (SEARCH_RESERVATION), looked up
+-- by rid among the live ones (FIND_CANCELABLE, CANCEL) and checked for a
+-- booking on the same day (INSERT_RESERVATION), all without reading the table
+CREATE INDEX Reservation_username ON Reservation(username, rid, canceled, paid, fid1, fid2, cost);
+
+-- Flights by route and day, shortest first
+CREATE INDEX Flights_route ON Flights(day_of_month, origin_city, dest_city, actual_time, fid);
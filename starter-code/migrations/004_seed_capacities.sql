@@ -0,0 +1,5 @@
+-- Every flight gets its Capacities row up front instead of on its first booking,
+-- so booking only ever updates it. Flights loaded later are seeded by
+-- FlightService import-flights.
+INSERT INTO Capacities (fid, capacity) SELECT F.fid, F.capacity FROM Flights F
+	WHERE NOT EXISTS (SELECT * FROM Capacities C WHERE C.fid = F.fid);
@@ -0,0 +1,4 @@
+-- Counter reservation IDs are leased from in blocks (ReservationIdAllocator),
+-- continuing after any reservations made before it existed
+CREATE TABLE ReservationIds(id INT PRIMARY KEY, next_rid INT);
+INSERT INTO ReservationIds (id, next_rid) SELECT 1, COALESCE(MAX(rid), 0) + 1 FROM Reservation;
@@ -0,0 +1,344 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A small pool of physical database connections shared by every Query in the
+ * process. Sessions borrow a connection for the duration of one transaction
+ * and give it back afterwards, so many logged-in users can share a few
+ * connections. Settings come from dbconn.properties.
+ *
+ * Transactions that change data run serializable on the primary pool;
+ * read-only ones borrow from reads(), a second pool of at most
+ * pool.read_max_size connections at pool.read_isolation, to
+ * storage.read_replica_url if one is set.
+ */
+class ConnectionPool {
+  private static final String CONFIG_FILE = "dbconn.properties";
+
+  private static ConnectionPool instance;
+
+  private final StorageBackend backend;
+  private final Properties configProps;
+  private final int minSize;
+  private final int maxSize;
+  private final long borrowTimeoutMillis;
+  private final long validationIntervalNanos;
+  private final int validationTimeoutSeconds;
+  private final long idleTimeoutNanos;
+  private final int statementCacheSize;
+  private final boolean timeStatements;
+  private final int isolation;
+  private final boolean replica;
+  private ConnectionPool reads;                             // created on first use, guarded by this
+
+  // most recently returned connections are at the head
+  private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+  // one permit per connection that may be handed out
+  private final Semaphore permits;
+  // physical connections currently open, idle or borrowed
+  private final AtomicInteger total = new AtomicInteger();
+  private final ScheduledExecutorService evictor;
+  private volatile boolean closed;
+
+  /**
+   * The primary pool, created once the schema is migrated
+   */
+  ConnectionPool(StorageBackend backend, Properties configProps) throws SQLException {
+    this(migrated(backend, configProps), configProps, Connection.TRANSACTION_SERIALIZABLE, false, "pool",
+            intProperty(configProps, "pool.max_size", 32));
+  }
+
+  private ConnectionPool(StorageBackend backend, Properties configProps, int isolation, boolean replica,
+          String metricsName, int maxSize) throws SQLException {
+    this.backend = backend;
+    this.isolation = isolation;
+    this.replica = replica;
+    this.configProps = configProps;
+    this.maxSize = Math.max(1, maxSize);
+    this.minSize = Math.min(intProperty(configProps, "pool.min_size", 2), this.maxSize);
+    this.borrowTimeoutMillis = intProperty(configProps, "pool.borrow_timeout_ms", 30000);
+    this.validationIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+            intProperty(configProps, "pool.validation_interval_ms", 5000));
+    this.validationTimeoutSeconds = intProperty(configProps, "pool.validation_timeout_s", 2);
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(intProperty(configProps, "pool.idle_timeout_ms", 300000));
+    this.statementCacheSize = intProperty(configProps, "pool.statement_cache_size", 64);
+    this.timeStatements = Boolean.parseBoolean(configProps.getProperty("metrics.statements", "true").trim());
+    this.permits = new Semaphore(this.maxSize, true);
+
+    for (int i = 0; i < minSize; i++) {
+      idle.offerLast(create());
+    }
+
+    evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "connection-pool-evictor");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    Metrics.getInstance().gauge(metricsName + ".connections", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return total.get();
+      }
+    });
+    Metrics.getInstance().gauge(metricsName + ".idle", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return idle.size();
+      }
+    });
+    long period = Math.max(1000, TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) / 2);
+    evictor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        evictIdle();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the process-wide pool, creating it from dbconn.properties on first
+   * use. System properties with the same keys (e.g. -Dstorage.backend=embedded)
+   * override the file.
+   */
+  static synchronized ConnectionPool getInstance() throws IOException, SQLException {
+    if (instance == null) {
+      Properties configProps = new Properties();
+      FileInputStream in = new FileInputStream(CONFIG_FILE);
+      try {
+        configProps.load(in);
+      } finally {
+        in.close();
+      }
+      for (String name : System.getProperties().stringPropertyNames()) {
+        if (configProps.containsKey(name) || name.startsWith("storage.") || name.startsWith("pool.")) {
+          configProps.setProperty(name, System.getProperty(name));
+        }
+      }
+      instance = new ConnectionPool(StorageBackend.fromConfig(configProps), configProps);
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the process-wide pool, creating it from the given settings on first
+   * use. Later calls return the existing pool and ignore their settings.
+   */
+  static synchronized ConnectionPool getInstance(Properties configProps) throws SQLException {
+    if (instance == null) {
+      instance = new ConnectionPool(StorageBackend.fromConfig(configProps), configProps);
+    }
+    return instance;
+  }
+
+  private static StorageBackend migrated(StorageBackend backend, Properties configProps) throws SQLException {
+    for (File script : SchemaMigrator.migrate(backend, configProps)) {
+      System.err.println("Applied schema migration " + script.getName());
+    }
+    return backend;
+  }
+
+  /**
+   * The pool read-only transactions borrow from: connections at
+   * pool.read_isolation (read_committed, snapshot or serializable) to the
+   * same database, or to the read replica at storage.read_replica_url. This
+   * pool itself if reads are neither routed nor run at a weaker isolation.
+   */
+  synchronized ConnectionPool reads() throws SQLException {
+    if (reads == null) {
+      String level = configProps.getProperty("pool.read_isolation", "read_committed").trim().toLowerCase();
+      String replicaUrl = configProps.getProperty("storage.read_replica_url", "").trim();
+      int readIsolation;
+      if (level.equals("read_committed")) {
+        readIsolation = Connection.TRANSACTION_READ_COMMITTED;
+      } else if (level.equals("snapshot")) {
+        readIsolation = backend.snapshotIsolation();
+      } else if (level.equals("serializable")) {
+        readIsolation = Connection.TRANSACTION_SERIALIZABLE;
+      } else {
+        throw new IllegalArgumentException("pool.read_isolation must be read_committed, snapshot or serializable, "
+                + "not " + level);
+      }
+      int readMaxSize = intProperty(configProps, "pool.read_max_size", 8);
+      if (!replicaUrl.isEmpty()) {
+        reads = new ConnectionPool(new ReplicaBackend(backend, replicaUrl), configProps, readIsolation, true,
+                "read_pool", readMaxSize);
+      } else if (readIsolation != isolation) {
+        reads = new ConnectionPool(backend, configProps, readIsolation, false, "read_pool", readMaxSize);
+      } else {
+        reads = this;
+      }
+    }
+    return reads;
+  }
+
+  /**
+   * Whether this pool's connections go to a read replica, which may lag
+   * behind the primary
+   */
+  boolean isReplica() {
+    return replica;
+  }
+
+  /**
+   * The backend this pool opens its connections to
+   */
+  StorageBackend backend() {
+    return backend;
+  }
+
+  /**
+   * The settings this pool was created from, for components that share it
+   */
+  Properties config() {
+    return configProps;
+  }
+
+  /**
+   * Borrows a connection for one transaction. Connections that sat idle longer
+   * than the validation interval are checked before being handed out.
+   *
+   * @throws SQLException if no connection frees up within the borrow timeout or
+   *                      a new connection cannot be opened
+   */
+  PooledConnection borrow() throws SQLException {
+    if (closed) {
+      throw new SQLException("Connection pool is closed");
+    }
+    long start = System.nanoTime();
+    try {
+      if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        throw new SQLException("Timed out after " + borrowTimeoutMillis + " ms waiting for a database connection");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a database connection", e);
+    } finally {
+      Metrics.getInstance().connectionWait(System.nanoTime() - start);
+    }
+
+    try {
+      PooledConnection pc;
+      while ((pc = idle.pollFirst()) != null) {
+        if (isUsable(pc)) {
+          return pc;
+        }
+        discard(pc);
+      }
+      return create();
+    } catch (SQLException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns a borrowed connection to the pool. Any transaction left open is
+   * rolled back. Passing null is a no-op so callers can release in a finally
+   * block.
+   */
+  void release(PooledConnection pc) {
+    if (pc == null) {
+      return;
+    }
+    try {
+      Connection conn = pc.connection();
+      if (!conn.getAutoCommit()) {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+      pc.lastUsed = System.nanoTime();
+      if (closed) {
+        discard(pc);
+      } else {
+        idle.offerFirst(pc);
+      }
+    } catch (SQLException e) {
+      discard(pc);
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Closes all idle connections and stops the evictor. Borrowed connections
+   * are closed when they are released.
+   */
+  void close() {
+    closed = true;
+    synchronized (this) {
+      if (reads != null && reads != this) {
+        reads.close();
+      }
+    }
+    evictor.shutdownNow();
+    PooledConnection pc;
+    while ((pc = idle.pollFirst()) != null) {
+      discard(pc);
+    }
+  }
+
+  private PooledConnection create() throws SQLException {
+    Connection conn = backend.connect();
+
+    // By default, automatically commit after each statement
+    conn.setAutoCommit(true);
+
+    // Serializable unless this pool is for read-only transactions
+    conn.setTransactionIsolation(isolation);
+
+    total.incrementAndGet();
+    return new PooledConnection(conn, statementCacheSize, timeStatements);
+  }
+
+  private boolean isUsable(PooledConnection pc) {
+    if (System.nanoTime() - pc.lastUsed < validationIntervalNanos) {
+      return true;
+    }
+    try {
+      return pc.connection().isValid(validationTimeoutSeconds);
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  private void discard(PooledConnection pc) {
+    total.decrementAndGet();
+    pc.close();
+  }
+
+  /**
+   * Closes connections that have been idle longer than the idle timeout, oldest
+   * first, without going below the minimum size, then tops the pool back up to
+   * the minimum.
+   */
+  private void evictIdle() {
+    long now = System.nanoTime();
+    Iterator<PooledConnection> oldestFirst = idle.descendingIterator();
+    while (oldestFirst.hasNext() && total.get() > minSize) {
+      PooledConnection pc = oldestFirst.next();
+      if (now - pc.lastUsed > idleTimeoutNanos && idle.removeLastOccurrence(pc)) {
+        discard(pc);
+      }
+    }
+    try {
+      while (!closed && total.get() < minSize) {
+        idle.offerLast(create());
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static int intProperty(Properties configProps, String name, int defaultValue) {
+    String value = configProps.getProperty(name);
+    return value == null ? defaultValue : Integer.parseInt(value.trim());
+  }
+}
@@ -0,0 +1,166 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * An in-process H2 database running in SQL Server compatibility mode, so the
+ * application, the cases/ suite and load tests can run without a network
+ * round trip or an Azure instance. On first use it is created from
+ * createTables.sql and seeded with a Flights CSV by FlightLoader; the
+ * connection pool then runs the schema migrations like on any other backend.
+ */
+class EmbeddedBackend implements StorageBackend {
+  static final String NAME = "embedded";
+
+  private static final String CREATE_FLIGHTS = "CREATE TABLE Flights (fid INT PRIMARY KEY, month_id INT, "
+          + "day_of_month INT, day_of_week_id INT, carrier_id VARCHAR(7), flight_num INT, origin_city VARCHAR(34), "
+          + "origin_state VARCHAR(47), dest_city VARCHAR(34), dest_state VARCHAR(46), departure_delay INT, "
+          + "taxi_out INT, arrival_delay INT, canceled INT, actual_time INT, distance INT, capacity INT, price INT);";
+
+  private static final String FLIGHTS_EXISTS = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES "
+          + "WHERE UPPER(TABLE_NAME) = 'FLIGHTS';";
+
+  // Columns of the table's own secondary indexes, in order; those backing constraints are generated
+  private static final String SECONDARY_INDEX_COLUMNS = "SELECT I.INDEX_NAME, I.INDEX_TYPE_NAME, C.COLUMN_NAME, "
+          + "C.ORDERING_SPECIFICATION FROM INFORMATION_SCHEMA.INDEXES I JOIN INFORMATION_SCHEMA.INDEX_COLUMNS C "
+          + "ON C.INDEX_SCHEMA = I.INDEX_SCHEMA AND C.INDEX_NAME = I.INDEX_NAME "
+          + "WHERE UPPER(I.TABLE_NAME) = UPPER(?) AND I.INDEX_TYPE_NAME IN ('INDEX', 'UNIQUE INDEX') "
+          + "AND NOT I.IS_GENERATED ORDER BY I.INDEX_NAME, C.ORDINAL_POSITION;";
+
+  private final String url;
+
+  private EmbeddedBackend(String url) {
+    this.url = url;
+  }
+
+  /**
+   * Opens the embedded database named by storage.embedded.database, creating
+   * and seeding it if it has no Flights table yet
+   */
+  static synchronized EmbeddedBackend open(Properties configProps) throws SQLException {
+    String database = configProps.getProperty("storage.embedded.database", "mem:flights").trim();
+    EmbeddedBackend backend = new EmbeddedBackend("jdbc:h2:" + database + ";MODE=MSSQLServer;DB_CLOSE_DELAY=-1");
+
+    Connection conn = backend.connect();
+    try {
+      ResultSet rs = conn.createStatement().executeQuery(FLIGHTS_EXISTS);
+      rs.next();
+      boolean seeded = rs.getInt(1) > 0;
+      rs.close();
+      if (!seeded) {
+        String schema = configProps.getProperty("storage.embedded.schema", "createTables.sql").trim();
+        String flightsCsv = configProps.getProperty("storage.embedded.flights_csv", "").trim();
+        createTables(conn, schema);
+        if (!flightsCsv.isEmpty()) {
+          FlightLoader.fromConfig(backend, configProps).load(flightsCsv);
+        }
+      }
+    } finally {
+      conn.close();
+    }
+    return backend;
+  }
+
+  @Override
+  public Connection connect() throws SQLException {
+    return DriverManager.getConnection(url);
+  }
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public String updateReturning(String table, String assignments, String condition, String column) {
+    return "SELECT " + column + " FROM FINAL TABLE (UPDATE " + table + " SET " + assignments + " WHERE " + condition
+            + ");";
+  }
+
+  /**
+   * H2's own level number; it has no constant in java.sql.Connection
+   */
+  @Override
+  public int snapshotIsolation() {
+    return 6;
+  }
+
+  @Override
+  public List<String> explain(Connection conn, String sql) throws SQLException {
+    PreparedStatement explain = conn.prepareStatement("EXPLAIN " + sql);
+    try {
+      StorageBackend.bindNulls(explain);
+      List<String> plan = new ArrayList<>();
+      ResultSet rs = explain.executeQuery();
+      while (rs.next()) {
+        plan.addAll(Arrays.asList(rs.getString(1).split("\n")));
+      }
+      rs.close();
+      return plan;
+    } finally {
+      explain.close();
+    }
+  }
+
+  /**
+   * H2 commits the open transaction around every DDL statement
+   */
+  @Override
+  public boolean transactionalDdl() {
+    return false;
+  }
+
+  /**
+   * H2 cannot disable an index, so the table's secondary indexes are dropped
+   * and the statements returned create them again
+   */
+  @Override
+  public List<String> suspendIndexes(Connection conn, String table) throws SQLException {
+    Map<String, StringBuilder> definitions = new LinkedHashMap<>();
+    PreparedStatement columns = conn.prepareStatement(SECONDARY_INDEX_COLUMNS);
+    try {
+      columns.setString(1, table);
+      ResultSet rs = columns.executeQuery();
+      while (rs.next()) {
+        String name = rs.getString(1);
+        StringBuilder definition = definitions.get(name);
+        if (definition == null) {
+          definition = new StringBuilder("CREATE ").append(rs.getString(2)).append(' ').append(name)
+                  .append(" ON ").append(table).append(" (");
+          definitions.put(name, definition);
+        } else {
+          definition.append(", ");
+        }
+        definition.append(rs.getString(3)).append(' ').append(rs.getString(4));
+      }
+      rs.close();
+    } finally {
+      columns.close();
+    }
+    List<String> rebuild = new ArrayList<>();
+    Statement s = conn.createStatement();
+    try {
+      for (Map.Entry<String, StringBuilder> e : definitions.entrySet()) {
+        s.execute("DROP INDEX " + e.getKey() + ";");
+        rebuild.add(e.getValue().append(");").toString());
+      }
+    } finally {
+      s.close();
+    }
+    return rebuild;
+  }
+
+  /**
+   * Runs every statement of the schema script, then creates Flights
+   */
+  private static void createTables(Connection conn, String schemaFile) throws SQLException {
+    Statement s = conn.createStatement();
+    for (String ddl : SchemaMigrator.statements(SchemaMigrator.read(new File(schemaFile)))) {
+      s.execute(ddl);
+    }
+    s.execute(CREATE_FLIGHTS);
+    s.close();
+  }
+}
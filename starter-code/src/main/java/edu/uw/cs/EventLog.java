@@ -0,0 +1,644 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only history of every change made by create, book, pay and cancel,
+ * kept in events.log_dir (empty turns it off). Each transaction takes a
+ * stamp just before it commits, while it still holds its locks, and puts its
+ * events on a lock-free queue after the commit and goes on; one background
+ * appender copies them into memory-mapped segment files and fsyncs once per
+ * batch it drained (events.fsync = batch), at most every
+ * events.fsync_interval_ms (interval), or leaves that to the OS (none). A
+ * session never waits for the disk, so events.fsync only decides how much of
+ * the latest history a crash can lose.
+ *
+ * Each record is its length, a CRC32 of the body and the body; a zero length
+ * ends a segment. "FlightService replay" sorts the events of all segments
+ * into commit order and folds them back into Reservation, ReservationLegs,
+ * Users.balance and Capacities (see History).
+ */
+class EventLog {
+  private static final String PREFIX = "events-";
+  private static final String SUFFIX = ".log";
+  private static final int HEADER_BYTES = 8;                // length and CRC
+
+  /**
+   * Commit order: the runs of the log in the order they started, then the
+   * stamps taken within a run. Events of one transaction share a stamp and
+   * keep the order they were queued in, as the sort is stable.
+   */
+  static final Comparator<Event> COMMIT_ORDER = new Comparator<Event>() {
+    @Override
+    public int compare(Event a, Event b) {
+      int byRun = Long.compare(a.run, b.run);
+      return byRun != 0 ? byRun : Long.compare(a.stamp, b.stamp);
+    }
+  };
+
+  // Event types
+  static final byte CLEAR = 0;
+  static final byte CREATE = 1;
+  static final byte BOOK = 2;
+  static final byte PAY = 3;
+  static final byte CANCEL = 4;
+
+  private static EventLog instance;
+
+  private final File directory;
+  private final int segmentBytes;
+  private final String fsync;
+  private final long fsyncIntervalNanos;
+  private final int queueCapacity;
+  private final long run;                                    // first segment this process writes
+  private final AtomicLong stamps = new AtomicLong();
+
+  private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicLong appended = new AtomicLong();       // events put on the queue
+  private volatile long written;                             // events copied into a segment
+  private volatile long durable;                             // events covered by an fsync
+  private volatile boolean sleeping;                         // appender is parked with an empty queue
+  private volatile boolean syncRequested;                    // a sync() caller waits for the next fsync
+  private volatile boolean closed;
+  private volatile IOException failure;                      // once set, events are dropped
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong fsyncs = new AtomicLong();
+
+  private long segment;
+  private FileChannel channel;
+  private MappedByteBuffer mapped;
+  private long lastForce = System.nanoTime();
+  private final Thread appender;
+
+  /**
+   * One change, as the appender writes it. run and stamp place it in commit
+   * order, fids is only set for bookings, amount is the initial balance for
+   * CREATE and the cost for BOOK, and flag says whether a canceled
+   * reservation was refunded.
+   */
+  static final class Event {
+    final byte type;
+    final long run;
+    final long stamp;
+    final long time;
+    final int rid;
+    final String username;
+    final int amount;
+    final boolean flag;
+    final int[] fids;
+
+    Event(byte type, long run, long stamp, long time, int rid, String username, int amount, boolean flag,
+          int[] fids) {
+      this.type = type;
+      this.run = run;
+      this.stamp = stamp;
+      this.time = time;
+      this.rid = rid;
+      this.username = username;
+      this.amount = amount;
+      this.flag = flag;
+      this.fids = fids;
+    }
+  }
+
+  /**
+   * Opens a new segment after any segments already in the directory
+   */
+  EventLog(File directory, int segmentBytes, String fsync, long fsyncIntervalMillis, int queueCapacity)
+          throws IOException {
+    this.directory = directory;
+    this.segmentBytes = Math.max(4096, segmentBytes);
+    this.fsync = fsync;
+    this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+    this.queueCapacity = Math.max(1, queueCapacity);
+    if (!fsync.equals("batch") && !fsync.equals("interval") && !fsync.equals("none")) {
+      throw new IllegalArgumentException("events.fsync must be batch, interval or none, not " + fsync);
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create event log directory " + directory);
+    }
+    List<File> existing = segments(directory);
+    segment = existing.isEmpty() ? 1 : number(existing.get(existing.size() - 1)) + 1;
+    run = segment;
+    map(segment);
+
+    appender = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        appendLoop();
+      }
+    }, "event-log-appender");
+    appender.setDaemon(true);
+    appender.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        close();
+      }
+    }, "event-log-shutdown"));
+  }
+
+  /**
+   * Returns the shared log, or null if events.log_dir is empty
+   */
+  static synchronized EventLog getInstance(ConnectionPool pool) throws SQLException {
+    Properties config = pool.config();
+    String dir = config.getProperty("events.log_dir", "").trim();
+    if (dir.isEmpty()) {
+      return null;
+    }
+    if (instance == null) {
+      try {
+        instance = new EventLog(new File(dir),
+                Integer.parseInt(config.getProperty("events.segment_bytes", "67108864").trim()),
+                config.getProperty("events.fsync", "batch").trim().toLowerCase(),
+                Long.parseLong(config.getProperty("events.fsync_interval_ms", "100").trim()),
+                Integer.parseInt(config.getProperty("events.queue_capacity", "65536").trim()));
+      } catch (IOException e) {
+        throw new SQLException("Cannot open event log in " + dir, e);
+      }
+      final EventLog log = instance;
+      Metrics metrics = Metrics.getInstance();
+      metrics.gauge("events.queued", new Metrics.Gauge() {
+        @Override
+        public long value() {
+          return log.queued.get();
+        }
+      });
+      metrics.gauge("events.written", new Metrics.Gauge() {
+        @Override
+        public long value() {
+          return log.written;
+        }
+      });
+      metrics.gauge("events.fsyncs", new Metrics.Gauge() {
+        @Override
+        public long value() {
+          return log.fsyncs.get();
+        }
+      });
+      metrics.gauge("events.dropped", new Metrics.Gauge() {
+        @Override
+        public long value() {
+          return log.dropped.get();
+        }
+      });
+    }
+    return instance;
+  }
+
+  /**
+   * The stamp of a transaction about to commit. Taken while the transaction
+   * still holds its locks, so any transaction that conflicts with it commits
+   * later and takes a larger stamp.
+   */
+  long stamp() {
+    return stamps.incrementAndGet();
+  }
+
+  /**
+   * Every custom table was emptied
+   */
+  void cleared(long stamp) {
+    append(new Event(CLEAR, run, stamp, System.currentTimeMillis(), 0, "", 0, false, null));
+  }
+
+  void created(long stamp, String username, int balance) {
+    append(new Event(CREATE, run, stamp, System.currentTimeMillis(), 0, username, balance, false, null));
+  }
+
+  void booked(long stamp, int rid, String username, int cost, int[] fids) {
+    append(new Event(BOOK, run, stamp, System.currentTimeMillis(), rid, username, cost, false, fids));
+  }
+
+  void paid(long stamp, int rid, String username) {
+    append(new Event(PAY, run, stamp, System.currentTimeMillis(), rid, username, 0, false, null));
+  }
+
+  void canceled(long stamp, int rid, String username, boolean refunded) {
+    append(new Event(CANCEL, run, stamp, System.currentTimeMillis(), rid, username, 0, refunded, null));
+  }
+
+  /**
+   * Queues an event for the appender. Only waits, without touching the disk,
+   * if events.queue_capacity events are already waiting.
+   */
+  private void append(Event event) {
+    if (failure != null || closed) {
+      dropped.incrementAndGet();
+      return;
+    }
+    while (queued.incrementAndGet() > queueCapacity) {
+      queued.decrementAndGet();
+      LockSupport.unpark(appender);
+      LockSupport.parkNanos(100000);
+    }
+    queue.offer(event);
+    appended.incrementAndGet();
+    if (sleeping) {
+      LockSupport.unpark(appender);
+    }
+  }
+
+  /**
+   * Blocks until every event queued before the call is written and fsynced,
+   * whatever events.fsync says
+   *
+   * @throws IOException if the log can no longer be written
+   */
+  void sync() throws IOException {
+    long target = appended.get();
+    while (durable < target) {
+      syncRequested = true;
+      if (failure != null) {
+        throw new IOException("Event log cannot be written", failure);
+      }
+      LockSupport.unpark(appender);
+      LockSupport.parkNanos(1000000);
+    }
+  }
+
+  /**
+   * Writes and fsyncs what is queued and stops the appender
+   */
+  void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    LockSupport.unpark(appender);
+    try {
+      appender.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void appendLoop() {
+    while (true) {
+      int drained = 0;
+      Event event;
+      try {
+        while ((event = queue.poll()) != null) {
+          queued.decrementAndGet();
+          write(event);
+          drained++;
+        }
+        written += drained;
+        boolean stopping = closed && queue.isEmpty();
+        if (written > durable && (stopping || syncRequested || fsync.equals("batch")
+                || (fsync.equals("interval") && System.nanoTime() - lastForce >= fsyncIntervalNanos))) {
+          syncRequested = false;
+          force();                                       // every event drained so far, in one fsync
+        }
+        if (stopping) {
+          return;
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+        failure = e;
+        dropped.addAndGet(queue.size());
+        queue.clear();
+        return;
+      }
+      if (drained == 0) {
+        sleeping = true;
+        if (queue.isEmpty() && !closed) {
+          // wake up for the next interval fsync, or when a session queues an event
+          boolean due = fsync.equals("interval") && written > durable;
+          LockSupport.parkNanos(due ? fsyncIntervalNanos : TimeUnit.SECONDS.toNanos(1));
+        }
+        sleeping = false;
+      }
+    }
+  }
+
+  private void write(Event event) throws IOException {
+    byte[] user = event.username.getBytes(StandardCharsets.UTF_8);
+    int fidCount = event.fids == null ? 0 : event.fids.length;
+    int bodyBytes = 1 + 8 + 8 + 8 + 4 + 4 + 1 + 2 + 4 * fidCount + 2 + user.length;
+    if (mapped.remaining() < HEADER_BYTES + bodyBytes) {
+      force();                                           // the segment is full: finish it and start the next
+      channel.close();
+      map(++segment);
+    }
+    int start = mapped.position();
+    mapped.position(start + HEADER_BYTES);
+    mapped.put(event.type).putLong(event.run).putLong(event.stamp).putLong(event.time).putInt(event.rid).putInt(event.amount).put((byte) (event.flag ? 1 : 0));
+    mapped.putShort((short) fidCount);
+    for (int i = 0; i < fidCount; i++) {
+      mapped.putInt(event.fids[i]);
+    }
+    mapped.putShort((short) user.length).put(user);
+    CRC32 crc = new CRC32();
+    for (int i = start + HEADER_BYTES; i < start + HEADER_BYTES + bodyBytes; i++) {
+      crc.update(mapped.get(i));
+    }
+    mapped.putInt(start + 4, (int) crc.getValue());
+    mapped.putInt(start, bodyBytes);                     // last, so a torn record reads as the end
+  }
+
+  private void force() {
+    mapped.force();
+    lastForce = System.nanoTime();
+    fsyncs.incrementAndGet();
+    durable = written;
+  }
+
+  private void map(long number) throws IOException {
+    channel = FileChannel.open(file(directory, number).toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+  }
+
+  /**
+   * Segment files in the directory, oldest first
+   */
+  static List<File> segments(File directory) {
+    File[] files = directory.listFiles();
+    List<File> result = new ArrayList<>();
+    if (files != null) {
+      for (File f : files) {
+        if (f.getName().startsWith(PREFIX) && f.getName().endsWith(SUFFIX)) {
+          result.add(f);
+        }
+      }
+    }
+    Collections.sort(result, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.compare(number(a), number(b));
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Adds a segment's events to events, in the order they were written. Stops
+   * at the end of the segment, or at a torn or corrupt record left by a
+   * crash; the next run starts a new segment, so later segments are still
+   * read.
+   */
+  static void read(File segmentFile, List<Event> events) throws IOException {
+    FileChannel in = FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ);
+    try {
+      ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+      while (buffer.remaining() >= HEADER_BYTES) {
+        int bodyBytes = buffer.getInt();
+        int expected = buffer.getInt();
+        if (bodyBytes <= 0 || bodyBytes > buffer.remaining()) {
+          return;
+        }
+        CRC32 crc = new CRC32();
+        for (int i = buffer.position(); i < buffer.position() + bodyBytes; i++) {
+          crc.update(buffer.get(i));
+        }
+        if ((int) crc.getValue() != expected) {
+          System.err.println("Corrupt event in " + segmentFile + " at byte " + (buffer.position() - HEADER_BYTES));
+          return;
+        }
+        byte type = buffer.get();
+        long run = buffer.getLong();
+        long stamp = buffer.getLong();
+        long time = buffer.getLong();
+        int rid = buffer.getInt();
+        int amount = buffer.getInt();
+        boolean flag = buffer.get() != 0;
+        int[] fids = new int[buffer.getShort()];
+        for (int i = 0; i < fids.length; i++) {
+          fids[i] = buffer.getInt();
+        }
+        byte[] user = new byte[buffer.getShort()];
+        buffer.get(user);
+        events.add(new Event(type, run, stamp, time, rid, new String(user, StandardCharsets.UTF_8), amount, flag,
+                fids));
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static File file(File directory, long number) {
+    return new File(directory, String.format("%s%012d%s", PREFIX, number, SUFFIX));
+  }
+
+  private static long number(File segmentFile) {
+    String name = segmentFile.getName();
+    return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+  }
+
+  /**
+   * The state the events since the last clear add up to, applied in commit
+   * order (see replay): balances are the initial balance plus the payments
+   * and refunds, a reservation is canceled if any cancel names it and paid
+   * only if it was paid and not canceled, and seats are taken by live
+   * reservations.
+   */
+  static class History {
+    private static final String CLEAR_LEGS = "DELETE FROM ReservationLegs;";
+    private static final String CLEAR_RESERVATIONS = "DELETE FROM Reservation;";
+    private static final String CLEAR_CAPACITIES = "DELETE FROM Capacities;";
+    private static final String INSERT_RESERVATION = "INSERT INTO Reservation (rid, fid1, fid2, paid, username, "
+            + "cost, canceled) VALUES (?, ?, ?, ?, ?, ?, ?);";
+    private static final String INSERT_LEG = "INSERT INTO ReservationLegs (rid, leg, fid) VALUES (?, ?, ?);";
+    private static final String SET_BALANCE = "UPDATE Users SET balance = ? WHERE username = ?;";
+    private static final String SET_CAPACITY = "UPDATE Capacities SET capacity = ? WHERE fid = ?;";
+    private static final String SET_NEXT_RID = "UPDATE ReservationIds SET next_rid = ? WHERE id = 1;";
+
+    final Map<String, Integer> initialBalances = new HashMap<>();
+    final TreeMap<Integer, Event> bookings = new TreeMap<>();
+    final Set<Integer> paid = new HashSet<>();
+    final Map<Integer, Boolean> canceled = new HashMap<>();  // rid to whether it was refunded
+    long events;
+
+    /**
+     * Applies the events in commit order. Sessions queue their events after
+     * committing, so the log may hold them in another order.
+     */
+    void replay(List<Event> logged) {
+      List<Event> sorted = new ArrayList<>(logged);
+      Collections.sort(sorted, COMMIT_ORDER);
+      for (Event event : sorted) {
+        apply(event);
+      }
+    }
+
+    void apply(Event event) {
+      events++;
+      switch (event.type) {
+        case CLEAR:
+          initialBalances.clear();
+          bookings.clear();
+          paid.clear();
+          canceled.clear();
+          break;
+        case CREATE:
+          initialBalances.put(event.username, event.amount);
+          break;
+        case BOOK:
+          bookings.put(event.rid, event);
+          break;
+        case PAY:
+          paid.add(event.rid);
+          break;
+        case CANCEL:
+          Boolean refunded = canceled.get(event.rid);
+          canceled.put(event.rid, event.flag || (refunded != null && refunded));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown event type " + event.type);
+      }
+    }
+
+    /**
+     * Final balance of every user created since the last clear
+     */
+    Map<String, Integer> balances() {
+      Map<String, Integer> balances = new HashMap<>(initialBalances);
+      for (Event booking : bookings.values()) {
+        Integer balance = balances.get(booking.username);
+        if (balance == null) {
+          continue;
+        }
+        if (paid.contains(booking.rid)) {
+          balance -= booking.amount;
+        }
+        Boolean refunded = canceled.get(booking.rid);
+        if (refunded != null && refunded) {
+          balance += booking.amount;
+        }
+        balances.put(booking.username, balance);
+      }
+      return balances;
+    }
+
+    /**
+     * Replaces Reservation, ReservationLegs and Capacities with the history's
+     * state and sets the balance of every user it knows, in one transaction.
+     * Users rows themselves are not created: the log holds no passwords.
+     *
+     * @return the number of users whose row was missing
+     */
+    int restore(Connection conn, FlightCache flights) throws SQLException {
+      Map<Integer, Integer> taken = new HashMap<>();
+      boolean autoCommit = conn.getAutoCommit();
+      conn.setAutoCommit(false);
+      try {
+        Statement clear = conn.createStatement();
+        clear.executeUpdate(CLEAR_LEGS);
+        clear.executeUpdate(CLEAR_RESERVATIONS);
+        clear.executeUpdate(CLEAR_CAPACITIES);
+        clear.executeUpdate(FlightLoader.SEED_CAPACITIES);       // every flight at full capacity
+        clear.close();
+
+        PreparedStatement reservation = conn.prepareStatement(INSERT_RESERVATION);
+        PreparedStatement leg = conn.prepareStatement(INSERT_LEG);
+        for (Event booking : bookings.values()) {
+          boolean isCanceled = canceled.containsKey(booking.rid);
+          reservation.setInt(1, booking.rid);
+          reservation.setInt(2, booking.fids[0]);
+          reservation.setInt(3, booking.fids.length > 1 ? booking.fids[1] : 0);
+          reservation.setInt(4, paid.contains(booking.rid) && !isCanceled ? 1 : 0);
+          reservation.setString(5, booking.username);
+          reservation.setInt(6, booking.amount);
+          reservation.setInt(7, isCanceled ? 1 : 0);
+          reservation.addBatch();
+          for (int i = 2; i < booking.fids.length; i++) {
+            leg.setInt(1, booking.rid);
+            leg.setInt(2, i + 1);
+            leg.setInt(3, booking.fids[i]);
+            leg.addBatch();
+          }
+          if (!isCanceled) {
+            for (int fid : booking.fids) {
+              Integer seats = taken.get(fid);
+              taken.put(fid, seats == null ? 1 : seats + 1);
+            }
+          }
+        }
+        reservation.executeBatch();
+        reservation.close();
+        leg.executeBatch();
+        leg.close();
+
+        PreparedStatement capacity = conn.prepareStatement(SET_CAPACITY);
+        for (Map.Entry<Integer, Integer> e : taken.entrySet()) {
+          capacity.setInt(1, flights.capacity(e.getKey()) - e.getValue());
+          capacity.setInt(2, e.getKey());
+          capacity.addBatch();
+        }
+        capacity.executeBatch();
+        capacity.close();
+
+        int missing = 0;
+        PreparedStatement balance = conn.prepareStatement(SET_BALANCE);
+        for (Map.Entry<String, Integer> e : balances().entrySet()) {
+          balance.setInt(1, e.getValue());
+          balance.setString(2, e.getKey());
+          if (balance.executeUpdate() == 0) {
+            missing++;
+          }
+        }
+        balance.close();
+
+        PreparedStatement nextRid = conn.prepareStatement(SET_NEXT_RID);
+        nextRid.setInt(1, bookings.isEmpty() ? 1 : bookings.lastKey() + 1);
+        nextRid.executeUpdate();
+        nextRid.close();
+        conn.commit();
+        return missing;
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(autoCommit);
+      }
+    }
+  }
+
+  /**
+   * "FlightService replay [dir]": rebuilds the tables from the event log in
+   * dir, events.log_dir by default. Run it while no FlightService is serving
+   * sessions.
+   */
+  static void main(String[] args) throws Exception {
+    ConnectionPool pool = ConnectionPool.getInstance();
+    Properties config = pool.config();
+    File dir = new File(args.length > 0 ? args[0] : config.getProperty("events.log_dir", "").trim());
+    if (!dir.isDirectory()) {
+      throw new IllegalArgumentException("No event log directory " + dir);
+    }
+    List<Event> events = new ArrayList<>();
+    List<File> segments = segments(dir);
+    for (File segmentFile : segments) {
+      read(segmentFile, events);
+    }
+    History history = new History();
+    history.replay(events);
+
+    PooledConnection pc = pool.borrow();
+    int missing;
+    try {
+      missing = history.restore(pc.connection(), FlightCache.getInstance(pool));
+    } finally {
+      pool.release(pc);
+    }
+    System.out.println("Replayed " + history.events + " events from " + segments.size() + " segments: "
+            + history.bookings.size() + " reservations, " + history.canceled.size() + " canceled, "
+            + history.initialBalances.size() + " balances");
+    if (missing > 0) {
+      System.out.println(missing + " users in the log have no Users row; their balance was not restored");
+    }
+  }
+}
@@ -0,0 +1,297 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Process-wide, read-only copy of the Flights attributes, which rarely change.
+ * Columns are kept in parallel arrays sorted by fid, with city, carrier and
+ * flight number strings interned, so a lookup is a binary search and no SQL.
+ *
+ * The cache is filled with one streaming scan, either when the first session
+ * opens (flights.cache_fill = eager) or on the first lookup (lazy). Only
+ * import-flights changes Flights, so by default the copy is kept until
+ * restart. With flights.refresh_ms set, the table is scanned again that
+ * often, and a copy that differs (an import, a canceled flag changed)
+ * replaces the shared one; FlightIndex, SearchCache and SeatInventory follow
+ * it.
+ */
+class FlightCache {
+  private static final String SCAN_FLIGHTS = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, "
+          + "dest_city, actual_time, capacity, price, canceled FROM Flights ORDER BY fid ASC;";
+
+  private static final int INITIAL_CAPACITY = 1 << 16;
+
+  private static volatile FlightCache instance;
+  private static ScheduledExecutorService refresher;      // guarded by FlightCache.class
+
+  private final int size;
+  private final int[] fids;                 // ascending
+  private final int[] days;
+  private final String[] carriers;
+  private final String[] flightNums;
+  private final String[] origins;
+  private final String[] dests;
+  private final int[] times;
+  private final int[] capacities;
+  private final int[] prices;
+  private final boolean[] canceled;
+
+  private FlightCache(int size, int[] fids, int[] days, String[] carriers, String[] flightNums, String[] origins,
+                      String[] dests, int[] times, int[] capacities, int[] prices, boolean[] canceled) {
+    this.size = size;
+    this.fids = fids;
+    this.days = days;
+    this.carriers = carriers;
+    this.flightNums = flightNums;
+    this.origins = origins;
+    this.dests = dests;
+    this.times = times;
+    this.capacities = capacities;
+    this.prices = prices;
+    this.canceled = canceled;
+  }
+
+  /**
+   * Fills the shared cache now unless flights.cache_fill is lazy
+   */
+  static void warmUp(ConnectionPool pool) throws SQLException {
+    String fill = pool.config().getProperty("flights.cache_fill", "eager").trim();
+    if (!fill.equalsIgnoreCase("lazy")) {
+      getInstance(pool);
+    }
+    scheduleRefresh(pool);
+  }
+
+  private static synchronized void scheduleRefresh(final ConnectionPool pool) {
+    long period = Long.parseLong(pool.config().getProperty("flights.refresh_ms", "0").trim());
+    if (refresher != null || period <= 0) {
+      return;
+    }
+    refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "flight-cache-refresh");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    refresher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (instance != null) {
+            refresh(pool);
+          }
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Scans Flights again and replaces the shared cache if anything changed
+   *
+   * @return the shared cache after the refresh
+   */
+  static FlightCache refresh(ConnectionPool pool) throws SQLException {
+    FlightCache fresh;
+    ConnectionPool reads = pool.reads();
+    PooledConnection pc = reads.borrow();
+    try {
+      fresh = load(pc.connection());
+    } finally {
+      reads.release(pc);
+    }
+    synchronized (FlightCache.class) {
+      FlightCache cache = instance;
+      if (cache == null || !cache.sameFlights(fresh)) {
+        instance = fresh;
+        return fresh;
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * Returns the shared cache, filling it on first use with a connection
+   * borrowed from the given pool's read pool.
+   */
+  static FlightCache getInstance(ConnectionPool pool) throws SQLException {
+    FlightCache cache = instance;
+    if (cache == null) {
+      synchronized (FlightCache.class) {
+        cache = instance;
+        if (cache == null) {
+          ConnectionPool reads = pool.reads();
+          PooledConnection pc = reads.borrow();
+          try {
+            cache = load(pc.connection());
+          } finally {
+            reads.release(pc);
+          }
+          instance = cache;
+        }
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Streams the whole Flights table into a new cache
+   */
+  static FlightCache load(Connection conn) throws SQLException {
+    int n = 0;
+    int[] fids = new int[INITIAL_CAPACITY];
+    int[] days = new int[INITIAL_CAPACITY];
+    String[] carriers = new String[INITIAL_CAPACITY];
+    String[] flightNums = new String[INITIAL_CAPACITY];
+    String[] origins = new String[INITIAL_CAPACITY];
+    String[] dests = new String[INITIAL_CAPACITY];
+    int[] times = new int[INITIAL_CAPACITY];
+    int[] capacities = new int[INITIAL_CAPACITY];
+    int[] prices = new int[INITIAL_CAPACITY];
+    boolean[] canceled = new boolean[INITIAL_CAPACITY];
+    Map<String, String> strings = new HashMap<>();
+
+    Statement scan = conn.createStatement();
+    scan.setFetchSize(10000);
+    ResultSet rs = scan.executeQuery(SCAN_FLIGHTS);
+    while (rs.next()) {
+      if (n == fids.length) {
+        int grown = n * 2;
+        fids = Arrays.copyOf(fids, grown);
+        days = Arrays.copyOf(days, grown);
+        carriers = Arrays.copyOf(carriers, grown);
+        flightNums = Arrays.copyOf(flightNums, grown);
+        origins = Arrays.copyOf(origins, grown);
+        dests = Arrays.copyOf(dests, grown);
+        times = Arrays.copyOf(times, grown);
+        capacities = Arrays.copyOf(capacities, grown);
+        prices = Arrays.copyOf(prices, grown);
+        canceled = Arrays.copyOf(canceled, grown);
+      }
+      fids[n] = rs.getInt(1);
+      days[n] = rs.getInt(2);
+      carriers[n] = intern(strings, rs.getString(3));
+      flightNums[n] = intern(strings, rs.getString(4));
+      origins[n] = intern(strings, rs.getString(5));
+      dests[n] = intern(strings, rs.getString(6));
+      times[n] = rs.getInt(7);
+      capacities[n] = rs.getInt(8);
+      prices[n] = rs.getInt(9);
+      canceled[n] = rs.getInt(10) == 1 || rs.wasNull();    // same flights as "canceled <> 1" leaves out
+      n++;
+    }
+    rs.close();
+    scan.close();
+
+    return new FlightCache(n, Arrays.copyOf(fids, n), Arrays.copyOf(days, n), Arrays.copyOf(carriers, n),
+            Arrays.copyOf(flightNums, n), Arrays.copyOf(origins, n), Arrays.copyOf(dests, n), Arrays.copyOf(times, n),
+            Arrays.copyOf(capacities, n), Arrays.copyOf(prices, n), Arrays.copyOf(canceled, n));
+  }
+
+  private boolean sameFlights(FlightCache other) {
+    return size == other.size && Arrays.equals(fids, other.fids) && Arrays.equals(days, other.days)
+            && Arrays.equals(carriers, other.carriers) && Arrays.equals(flightNums, other.flightNums)
+            && Arrays.equals(origins, other.origins) && Arrays.equals(dests, other.dests)
+            && Arrays.equals(times, other.times) && Arrays.equals(capacities, other.capacities)
+            && Arrays.equals(prices, other.prices) && Arrays.equals(canceled, other.canceled);
+  }
+
+  private static String intern(Map<String, String> strings, String s) {
+    if (s == null) {
+      return null;
+    }
+    String shared = strings.get(s);
+    if (shared == null) {
+      strings.put(s, s);
+      shared = s;
+    }
+    return shared;
+  }
+
+  /**
+   * Number of cached flights
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Position of the flight in the cache, or a negative number if there is no
+   * such flight
+   */
+  int indexOf(int fid) {
+    return Arrays.binarySearch(fids, 0, size, fid);
+  }
+
+  /**
+   * fid of the flight at the given position
+   */
+  int fidAt(int i) {
+    return fids[i];
+  }
+
+  /**
+   * Maximum capacity of the flight at the given position
+   */
+  int capacityAt(int i) {
+    return capacities[i];
+  }
+
+  /**
+   * The flight at the given position, as a new Flight
+   */
+  Query.Flight flightAt(int i) {
+    Query.Flight f = new Query.Flight();
+    f.fid = fids[i];
+    f.dayOfMonth = days[i];
+    f.carrierId = carriers[i];
+    f.flightNum = flightNums[i];
+    f.originCity = origins[i];
+    f.destCity = dests[i];
+    f.time = times[i];
+    f.capacity = capacities[i];
+    f.price = prices[i];
+    return f;
+  }
+
+  /**
+   * Whether the flight at the given position is left out of searches
+   */
+  boolean isCanceled(int i) {
+    return canceled[i];
+  }
+
+  /**
+   * Writes the flight with the given fid in the Flight format, straight from
+   * the cached columns
+   *
+   * @throws SQLException if there is no such flight
+   */
+  StringBuilder appendTo(StringBuilder sb, int fid) throws SQLException {
+    int i = require(fid);
+    return Query.Flight.format(sb, fids[i], days[i], carriers[i], flightNums[i], origins[i], dests[i], times[i],
+            capacities[i], prices[i]);
+  }
+
+  /**
+   * Maximum capacity of the flight, as listed in Flights
+   *
+   * @throws SQLException if there is no such flight
+   */
+  int capacity(int fid) throws SQLException {
+    return capacities[require(fid)];
+  }
+
+  private int require(int fid) throws SQLException {
+    int i = indexOf(fid);
+    if (i < 0) {
+      throw new SQLException("No flight with fid " + fid);
+    }
+    return i;
+  }
+}
@@ -0,0 +1,367 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Read-only, per-day adjacency index of the Flights table. It is built once
+ * from the flight cache and shared by all Query instances, so searches never
+ * go back to the database. Flights are grouped by origin and by route, each
+ * group sorted by duration, so a search only touches the flights it returns
+ * and the ones it has to rule out.
+ */
+class FlightIndex {
+  private static final int DAYS_IN_MONTH = 31;
+
+  /** Same ordering as "ORDER BY actual_time ASC, fid ASC" */
+  static final Comparator<Query.Flight> DIRECT_ORDER = new Comparator<Query.Flight>() {
+    @Override
+    public int compare(Query.Flight a, Query.Flight b) {
+      if (a.time != b.time) {
+        return Integer.compare(a.time, b.time);
+      }
+      return Integer.compare(a.fid, b.fid);
+    }
+  };
+
+  private static volatile FlightIndex instance;
+
+  private static final Query.Flight[] NO_FLIGHTS = new Query.Flight[0];
+
+  // day of month -> origin city -> departing flights sorted by DIRECT_ORDER
+  private final List<Map<String, Query.Flight[]>> byDay;
+  // day of month -> origin city -> destination city -> flights sorted by DIRECT_ORDER
+  private final List<Map<String, Map<String, Query.Flight[]>>> routesByDay;
+  // day of month -> destination city -> shortest flight arriving there
+  private final List<Map<String, Integer>> shortestArrivalByDay;
+
+  private final FlightCache flights;                   // what the index was built from
+
+  private FlightIndex(FlightCache flights, List<Map<String, Query.Flight[]>> byDay, List<Map<String, Map<String, Query.Flight[]>>> routesByDay,
+                      List<Map<String, Integer>> shortestArrivalByDay) {
+    this.flights = flights;
+    this.byDay = byDay;
+    this.routesByDay = routesByDay;
+    this.shortestArrivalByDay = shortestArrivalByDay;
+  }
+
+  /**
+   * Returns the shared index, building it on first use from the shared flight
+   * cache, and again whenever that cache has been refreshed.
+   */
+  static FlightIndex getInstance(ConnectionPool pool) throws SQLException {
+    FlightCache flights = FlightCache.getInstance(pool);
+    FlightIndex index = instance;
+    if (index == null || index.flights != flights) {
+      synchronized (FlightIndex.class) {
+        index = instance;
+        if (index == null || index.flights != flights) {
+          index = build(flights);
+          instance = index;
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Groups the flights that are not canceled by day and origin city
+   */
+  static FlightIndex build(FlightCache flights) {
+    List<Map<String, List<Query.Flight>>> groups = new ArrayList<>(DAYS_IN_MONTH + 1);
+    for (int day = 0; day <= DAYS_IN_MONTH; day++) {
+      groups.add(new HashMap<String, List<Query.Flight>>());
+    }
+
+    for (int i = 0; i < flights.size(); i++) {
+      if (flights.isCanceled(i)) {
+        continue;
+      }
+      Query.Flight f = flights.flightAt(i);
+      if (f.dayOfMonth < 1 || f.dayOfMonth > DAYS_IN_MONTH) {
+        continue;
+      }
+
+      Map<String, List<Query.Flight>> day = groups.get(f.dayOfMonth);
+      List<Query.Flight> departures = day.get(f.originCity);
+      if (departures == null) {
+        departures = new ArrayList<>();
+        day.put(f.originCity, departures);
+      }
+      departures.add(f);
+    }
+
+    List<Map<String, Query.Flight[]>> byDay = new ArrayList<>(DAYS_IN_MONTH + 1);
+    List<Map<String, Map<String, Query.Flight[]>>> routesByDay = new ArrayList<>(DAYS_IN_MONTH + 1);
+    List<Map<String, Integer>> shortestArrivalByDay = new ArrayList<>(DAYS_IN_MONTH + 1);
+    for (Map<String, List<Query.Flight>> day : groups) {
+      Map<String, Query.Flight[]> sorted = new HashMap<>(day.size() * 2);
+      Map<String, Map<String, Query.Flight[]>> routes = new HashMap<>(day.size() * 2);
+      Map<String, Integer> shortestArrival = new HashMap<>();
+      for (Map.Entry<String, List<Query.Flight>> e : day.entrySet()) {
+        Query.Flight[] departures = e.getValue().toArray(new Query.Flight[0]);
+        Arrays.sort(departures, DIRECT_ORDER);
+        sorted.put(e.getKey(), departures);
+        routes.put(e.getKey(), byDestination(departures));
+        for (Query.Flight f : departures) {
+          Integer shortest = shortestArrival.get(f.destCity);
+          if (shortest == null || f.time < shortest) {
+            shortestArrival.put(f.destCity, f.time);
+          }
+        }
+      }
+      byDay.add(Collections.unmodifiableMap(sorted));
+      routesByDay.add(Collections.unmodifiableMap(routes));
+      shortestArrivalByDay.add(Collections.unmodifiableMap(shortestArrival));
+    }
+    return new FlightIndex(flights, byDay, routesByDay, shortestArrivalByDay);
+  }
+
+  /**
+   * Splits departures sorted by DIRECT_ORDER by destination, keeping the order
+   */
+  private static Map<String, Query.Flight[]> byDestination(Query.Flight[] departures) {
+    Map<String, List<Query.Flight>> lists = new HashMap<>();
+    for (Query.Flight f : departures) {
+      List<Query.Flight> route = lists.get(f.destCity);
+      if (route == null) {
+        route = new ArrayList<>();
+        lists.put(f.destCity, route);
+      }
+      route.add(f);
+    }
+    Map<String, Query.Flight[]> routes = new HashMap<>(lists.size() * 2);
+    for (Map.Entry<String, List<Query.Flight>> e : lists.entrySet()) {
+      routes.put(e.getKey(), e.getValue().toArray(new Query.Flight[0]));
+    }
+    return routes;
+  }
+
+  /**
+   * Flights leaving the given city on the given day, sorted by duration then fid
+   */
+  Query.Flight[] departures(int dayOfMonth, String city) {
+    if (dayOfMonth < 1 || dayOfMonth > DAYS_IN_MONTH) {
+      return NO_FLIGHTS;
+    }
+    Query.Flight[] departures = byDay.get(dayOfMonth).get(city);
+    return departures == null ? NO_FLIGHTS : departures;
+  }
+
+  /**
+   * Flights from one city to another on the given day, sorted by duration then
+   * fid
+   */
+  Query.Flight[] route(int dayOfMonth, String originCity, String destCity) {
+    if (dayOfMonth < 1 || dayOfMonth > DAYS_IN_MONTH) {
+      return NO_FLIGHTS;
+    }
+    Map<String, Query.Flight[]> routes = routesByDay.get(dayOfMonth).get(originCity);
+    Query.Flight[] route = routes == null ? null : routes.get(destCity);
+    return route == null ? NO_FLIGHTS : route;
+  }
+
+  /**
+   * Returns up to k direct flights in "ORDER BY actual_time, fid" order
+   */
+  List<Query.Flight> direct(int dayOfMonth, String originCity, String destCity, int k) {
+    Query.Flight[] route = route(dayOfMonth, originCity, destCity);
+    return Collections.unmodifiableList(Arrays.asList(k >= route.length ? route : Arrays.copyOf(route, Math.max(0, k))));
+  }
+
+  /**
+   * Returns up to k one-stop itineraries in "ORDER BY (F1.actual_time +
+   * F2.actual_time), F1.fid, F2.fid" order. Every first leg
+   * out of the origin heads a list of itineraries, one per second leg from its
+   * stop to the destination, already sorted because routes are. The lists are
+   * merged through a heap holding one cursor per list, and a first leg's list
+   * only joins once the shortest itinerary it could start (its duration plus
+   * the shortest flight into the destination) is no longer than the heap's
+   * best. The search stops after k itineraries, having looked at about k
+   * second legs and the first legs shorter than the k-th itinerary, however
+   * many flights leave the stops.
+   */
+  List<Query.Flight[]> oneStop(int dayOfMonth, String originCity, String destCity, int k) {
+    List<Query.Flight[]> result = new ArrayList<>();
+    Integer shortestArrival = dayOfMonth < 1 || dayOfMonth > DAYS_IN_MONTH ? null
+            : shortestArrivalByDay.get(dayOfMonth).get(destCity);
+    if (k <= 0 || shortestArrival == null) {
+      return result;
+    }
+    Query.Flight[] firstLegs = departures(dayOfMonth, originCity);
+    PriorityQueue<Cursor> heap = new PriorityQueue<>();
+    int next = 0;                                         // first leg whose list has not joined yet
+    while (result.size() < k) {
+      while (next < firstLegs.length
+              && (heap.isEmpty() || firstLegs[next].time + shortestArrival <= heap.peek().total())) {
+        Query.Flight first = firstLegs[next++];
+        Query.Flight[] secondLegs = route(dayOfMonth, first.destCity, destCity);
+        if (secondLegs.length > 0) {
+          heap.add(new Cursor(first, secondLegs));
+        }
+      }
+      Cursor best = heap.poll();
+      if (best == null) {
+        break;
+      }
+      result.add(new Query.Flight[] { best.first, best.secondLegs[best.position] });
+      if (++best.position < best.secondLegs.length) {
+        heap.add(best);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns up to k itineraries of two to maxLegs flights, ordered by total
+   * duration, then by the fids of their legs in turn, so two-leg results
+   * match oneStop. No itinerary passes through a city twice, and all legs are
+   * on the same day; Flights has no departure or arrival times, so as with
+   * oneStop connections cannot be held to a minimum connection time.
+   *
+   * Partial itineraries are expanded best first from a heap. Popping one
+   * pushes at most two more: the same itinerary with its last leg replaced
+   * by the next flight out of the same city, and the itinerary extended by
+   * the shortest flight out of its last stop (only flights to the
+   * destination for the last leg). Both sort no earlier than what was
+   * popped, so complete itineraries come off the heap in order. At most
+   * maxExpansions itineraries are popped, which bounds time and memory
+   * whatever maxLegs is; a search that runs out returns what it has.
+   */
+  List<Query.Flight[]> multiHop(int dayOfMonth, String originCity, String destCity, int maxLegs, int k,
+                                int maxExpansions) {
+    List<Query.Flight[]> result = new ArrayList<>();
+    if (k <= 0 || maxLegs < 2) {
+      return result;
+    }
+    PriorityQueue<Path> heap = new PriorityQueue<>();
+    Query.Flight[] firstLegs = departures(dayOfMonth, originCity);
+    int first = nextUnvisited(firstLegs, 0, null, originCity);
+    if (first >= 0) {
+      heap.add(new Path(null, firstLegs, first));
+    }
+    for (int popped = 0; popped < maxExpansions && result.size() < k; popped++) {
+      Path path = heap.poll();
+      if (path == null) {
+        break;
+      }
+      int sibling = nextUnvisited(path.alternatives, path.position + 1, path.previous, originCity);
+      if (sibling >= 0) {
+        heap.add(new Path(path.previous, path.alternatives, sibling));
+      }
+      Query.Flight last = path.last();
+      if (last.destCity.equals(destCity)) {
+        if (path.legs >= 2) {                               // direct flights are not part of this search
+          result.add(path.flights());
+        }
+        continue;
+      }
+      if (path.legs < maxLegs) {
+        Query.Flight[] next = path.legs + 1 == maxLegs ? route(dayOfMonth, last.destCity, destCity)
+                : departures(dayOfMonth, last.destCity);
+        int child = nextUnvisited(next, 0, path, originCity);
+        if (child >= 0) {
+          heap.add(new Path(path, next, child));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Position of the first flight at or after from that does not fly back to
+   * a city the path already visited, or -1
+   */
+  private static int nextUnvisited(Query.Flight[] flights, int from, Path path, String originCity) {
+    for (int i = from; i < flights.length; i++) {
+      String city = flights[i].destCity;
+      boolean visited = city.equals(originCity);
+      for (Path p = path; p != null && !visited; p = p.previous) {
+        visited = city.equals(p.last().destCity);
+      }
+      if (!visited) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * A partial itinerary: the path before it, then alternatives[position]. The
+   * alternatives are sorted by duration, so the next one is the cheapest
+   * other way to extend the same path.
+   */
+  private static final class Path implements Comparable<Path> {
+    final Path previous;
+    final Query.Flight[] alternatives;
+    final int position;
+    final int legs;
+    final int total;
+
+    Path(Path previous, Query.Flight[] alternatives, int position) {
+      this.previous = previous;
+      this.alternatives = alternatives;
+      this.position = position;
+      this.legs = previous == null ? 1 : previous.legs + 1;
+      this.total = (previous == null ? 0 : previous.total) + alternatives[position].time;
+    }
+
+    Query.Flight last() {
+      return alternatives[position];
+    }
+
+    Query.Flight[] flights() {
+      Query.Flight[] flights = new Query.Flight[legs];
+      int i = legs;
+      for (Path p = this; p != null; p = p.previous) {
+        flights[--i] = p.last();
+      }
+      return flights;
+    }
+
+    @Override
+    public int compareTo(Path other) {
+      if (total != other.total) {
+        return Integer.compare(total, other.total);
+      }
+      Query.Flight[] mine = flights();                      // ties are rare, compare leg by leg
+      Query.Flight[] theirs = other.flights();
+      for (int i = 0; i < mine.length && i < theirs.length; i++) {
+        if (mine[i].fid != theirs[i].fid) {
+          return Integer.compare(mine[i].fid, theirs[i].fid);
+        }
+      }
+      return Integer.compare(mine.length, theirs.length);
+    }
+  }
+
+  /**
+   * The next itinerary of one first leg: the first leg followed by the
+   * second leg at position, ordered by total duration, then by both fids
+   */
+  private static final class Cursor implements Comparable<Cursor> {
+    final Query.Flight first;
+    final Query.Flight[] secondLegs;
+    int position;
+
+    Cursor(Query.Flight first, Query.Flight[] secondLegs) {
+      this.first = first;
+      this.secondLegs = secondLegs;
+    }
+
+    int total() {
+      return first.time + secondLegs[position].time;
+    }
+
+    @Override
+    public int compareTo(Cursor other) {
+      if (total() != other.total()) {
+        return Integer.compare(total(), other.total());
+      }
+      if (first.fid != other.first.fid) {
+        return Integer.compare(first.fid, other.first.fid);
+      }
+      return Integer.compare(secondLegs[position].fid, other.secondLegs[other.position].fid);
+    }
+  }
+}
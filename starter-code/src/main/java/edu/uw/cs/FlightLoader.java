@@ -0,0 +1,402 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bulk loads a Flights CSV (columns in table order, optional header row, empty
+ * fields are NULL). The calling thread reads the file and cuts it into
+ * batches of flights.load_batch_size lines; flights.load_writers threads
+ * take them from a queue of at most flights.load_queue_batches, parse them
+ * and insert each with one JDBC batch on their own connection, committing
+ * every batch. Those connections come straight from the backend, not from
+ * the pool, as the embedded backend loads its flights before the pool
+ * exists. The reader waits while the queue is full, so memory stays
+ * bounded however large the file is.
+ *
+ * A failed load keeps the batches committed before the failure; load again
+ * with --replace. Replacing the dataset also suspends the secondary indexes
+ * of Flights during the load and builds each in one pass afterwards.
+ * Capacities then gets a row for every flight in one set-based pass, so
+ * bookings only ever update it; after a replace every row is refilled from
+ * the new capacities, less the seats of live reservations.
+ */
+class FlightLoader {
+  private static final String INSERT_FLIGHT = "INSERT INTO Flights VALUES "
+          + "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+
+  private static final String CLEAR_FLIGHTS = "TRUNCATE TABLE Flights;";
+
+  // Seats already taken on flights that are gone are forgotten with them
+  private static final String DROP_STALE_CAPACITIES = "DELETE FROM Capacities "
+          + "WHERE NOT EXISTS (SELECT * FROM Flights F WHERE F.fid = Capacities.fid);";
+
+  private static final String CLEAR_CAPACITIES = "DELETE FROM Capacities;";
+
+  // Seats of live reservations, taken again after Capacities was refilled from the new flights
+  private static final String RETAKE_SEATS = "UPDATE Capacities SET capacity = capacity "
+          + "- (SELECT COUNT(*) FROM Reservation R WHERE R.canceled = 0 AND R.fid1 = Capacities.fid) "
+          + "- (SELECT COUNT(*) FROM Reservation R WHERE R.canceled = 0 AND R.fid2 = Capacities.fid) "
+          + "- (SELECT COUNT(*) FROM ReservationLegs L, Reservation R WHERE L.rid = R.rid AND R.canceled = 0 "
+          + "AND L.fid = Capacities.fid) "
+          + "WHERE fid IN (SELECT fid1 FROM Reservation WHERE canceled = 0 UNION SELECT fid2 FROM Reservation "
+          + "WHERE canceled = 0 UNION SELECT L.fid FROM ReservationLegs L, Reservation R WHERE L.rid = R.rid "
+          + "AND R.canceled = 0);";
+
+  // A full Capacities row for every flight that has none
+  static final String SEED_CAPACITIES = "INSERT INTO Capacities (fid, capacity) SELECT F.fid, F.capacity "
+          + "FROM Flights F WHERE NOT EXISTS (SELECT * FROM Capacities C WHERE C.fid = F.fid);";
+
+  // 1-based Flights columns that hold text, all others are integers
+  private static final Set<Integer> TEXT_COLUMNS = new HashSet<>(Arrays.asList(5, 7, 8, 9, 10));
+  private static final int FLIGHT_COLUMNS = 18;
+
+  private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+  private static final Batch END = new Batch(0);         // one per writer once the file is read
+
+  private final StorageBackend backend;
+  private final int writers;
+  private final int batchSize;
+  private final int queueBatches;
+
+  /**
+   * Lines of the file, each with its line number for error messages
+   */
+  private static final class Batch {
+    final String[] lines;
+    final long[] lineNumbers;
+    int size;
+
+    Batch(int capacity) {
+      lines = new String[capacity];
+      lineNumbers = new long[capacity];
+    }
+  }
+
+  FlightLoader(StorageBackend backend, int writers, int batchSize, int queueBatches) {
+    this.backend = backend;
+    this.writers = Math.max(1, writers);
+    this.batchSize = Math.max(1, batchSize);
+    this.queueBatches = Math.max(1, queueBatches);
+  }
+
+  /**
+   * A loader with the flights.load_* settings
+   */
+  static FlightLoader fromConfig(StorageBackend backend, Properties config) {
+    int writers = Integer.parseInt(config.getProperty("flights.load_writers", "4").trim());
+    int batchSize = Integer.parseInt(config.getProperty("flights.load_batch_size", "1000").trim());
+    int queueBatches = Integer.parseInt(config.getProperty("flights.load_queue_batches", "16").trim());
+    return new FlightLoader(backend, writers, batchSize, queueBatches);
+  }
+
+  /**
+   * Inserts every flight of the CSV into Flights
+   *
+   * @return the flights inserted
+   * @throws SQLException if the file cannot be read, a line is malformed or an
+   *                      insert fails; batches already committed stay
+   */
+  long load(String csvFile) throws SQLException {
+    final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(queueBatches);
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    final AtomicLong loaded = new AtomicLong();
+    final String source = csvFile;
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 1; i <= writers; i++) {
+      Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          write(source, queue, failure, loaded);
+        }
+      }, "flight-loader-" + i);
+      t.setDaemon(true);
+      t.start();
+      threads.add(t);
+    }
+
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile),
+              StandardCharsets.UTF_8), 1 << 16);
+      try {
+        Batch batch = new Batch(batchSize);
+        String line;
+        long lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+          lineNumber++;
+          if (line.trim().isEmpty()) {
+            continue;
+          }
+          if (lineNumber == 1 && !splitCsv(line).get(0).matches("\\d+")) {
+            continue;                                   // header row
+          }
+          batch.lines[batch.size] = line;
+          batch.lineNumbers[batch.size] = lineNumber;
+          if (++batch.size == batchSize) {
+            if (!hand(queue, batch, failure)) {
+              break;
+            }
+            batch = new Batch(batchSize);
+          }
+        }
+        if (batch.size > 0) {
+          hand(queue, batch, failure);
+        }
+        for (int i = 0; i < writers; i++) {
+          hand(queue, END, failure);
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      failure.compareAndSet(null, e);
+    } catch (InterruptedException e) {
+      failure.compareAndSet(null, e);
+      Thread.currentThread().interrupt();
+    }
+
+    for (Thread t : threads) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        failure.compareAndSet(null, e);
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    Exception e = failure.get();
+    if (e instanceof SQLException) {
+      throw (SQLException) e;
+    } else if (e != null) {
+      throw new SQLException("Cannot load flights from " + csvFile, e);
+    }
+    return loaded.get();
+  }
+
+  /**
+   * Puts a batch on the queue, waiting while it is full
+   *
+   * @return false, dropping the batch, once a writer has failed
+   */
+  private static boolean hand(BlockingQueue<Batch> queue, Batch batch, AtomicReference<Exception> failure)
+          throws InterruptedException {
+    while (!queue.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+      if (failure.get() != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A writer thread: inserts and commits batches until the reader is done or
+   * anyone failed
+   */
+  private void write(String csvFile, BlockingQueue<Batch> queue, AtomicReference<Exception> failure,
+                     AtomicLong loaded) {
+    Connection conn = null;
+    try {
+      conn = backend.connect();
+      conn.setAutoCommit(false);
+      PreparedStatement insert = conn.prepareStatement(INSERT_FLIGHT);
+      while (failure.get() == null) {
+        Batch batch = queue.poll(OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (batch == END) {
+          break;
+        } else if (batch == null) {
+          continue;
+        }
+        for (int i = 0; i < batch.size; i++) {
+          bind(insert, csvFile, batch.lineNumbers[i], batch.lines[i]);
+          insert.addBatch();
+        }
+        insert.executeBatch();
+        conn.commit();
+        loaded.addAndGet(batch.size);
+      }
+      insert.close();
+    } catch (SQLException | InterruptedException e) {
+      failure.compareAndSet(null, e);
+    } finally {
+      if (conn != null) {
+        try {
+          conn.rollback();                              // the batch that failed, if any
+          conn.close();
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private static void bind(PreparedStatement insert, String csvFile, long lineNumber, String line)
+          throws SQLException {
+    List<String> fields = splitCsv(line);
+    if (fields.size() != FLIGHT_COLUMNS) {
+      throw new SQLException(csvFile + ":" + lineNumber + ": expected " + FLIGHT_COLUMNS + " columns but found "
+              + fields.size());
+    }
+    for (int i = 1; i <= FLIGHT_COLUMNS; i++) {
+      String field = fields.get(i - 1);
+      if (field.isEmpty()) {
+        insert.setNull(i, TEXT_COLUMNS.contains(i) ? Types.VARCHAR : Types.INTEGER);
+      } else if (TEXT_COLUMNS.contains(i)) {
+        insert.setString(i, field);
+      } else {
+        try {
+          insert.setInt(i, Integer.parseInt(field));
+        } catch (NumberFormatException e) {
+          throw new SQLException(csvFile + ":" + lineNumber + ": column " + i + " is not a number: " + field);
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes every flight, before loading a new dataset
+   */
+  static void clear(Connection conn) throws SQLException {
+    Statement s = conn.createStatement();
+    s.executeUpdate(CLEAR_FLIGHTS);
+    s.close();
+  }
+
+  /**
+   * Refills Capacities after Flights was replaced: every flight at its new
+   * capacity, less the seats its live reservations hold. A surviving fid
+   * whose capacity changed would otherwise keep its old count.
+   *
+   * @return the rows inserted
+   */
+  static int reseedCapacities(Connection conn) throws SQLException {
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(false);                          // bookings never see Capacities half refilled
+    Statement s = conn.createStatement();
+    try {
+      s.executeUpdate(CLEAR_CAPACITIES);
+      int seeded = s.executeUpdate(SEED_CAPACITIES);
+      s.executeUpdate(RETAKE_SEATS);
+      conn.commit();
+      return seeded;
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      s.close();
+      conn.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * Gives every flight without a Capacities row one at full capacity, and
+   * drops the rows of flights that no longer exist
+   *
+   * @return the rows inserted
+   */
+  static int seedCapacities(Connection conn) throws SQLException {
+    Statement s = conn.createStatement();
+    try {
+      s.executeUpdate(DROP_STALE_CAPACITIES);
+      return s.executeUpdate(SEED_CAPACITIES);
+    } finally {
+      s.close();
+    }
+  }
+
+  /**
+   * Splits one CSV line on commas, honoring double-quoted fields
+   */
+  static List<String> splitCsv(String line) {
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString().trim());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString().trim());
+    return fields;
+  }
+
+  /**
+   * "FlightService import-flights [--replace] <flights.csv>": loads the CSV
+   * into the configured database, after emptying Flights with --replace,
+   * then seeds Capacities. Sessions already running see the new flights at
+   * their next flights.refresh_ms, if it is set, and otherwise after a
+   * restart.
+   */
+  static void main(String[] args) throws Exception {
+    boolean replace = false;
+    String csvFile = null;
+    for (String arg : args) {
+      if (arg.equals("--replace")) {
+        replace = true;
+      } else {
+        csvFile = arg;
+      }
+    }
+    if (csvFile == null) {
+      throw new IllegalArgumentException("Usage: FlightService import-flights [--replace] <flights.csv>");
+    }
+
+    ConnectionPool pool = ConnectionPool.getInstance();
+    FlightLoader loader = fromConfig(pool.backend(), pool.config());
+    PooledConnection pc = pool.borrow();
+    try {
+      Connection conn = pc.connection();
+      long start = System.nanoTime();
+      List<String> rebuild = Collections.emptyList();
+      if (replace) {
+        clear(conn);
+        rebuild = pool.backend().suspendIndexes(conn, "Flights");
+      }
+      long rows;
+      long loadedAt;
+      try {
+        rows = loader.load(csvFile);
+      } finally {
+        loadedAt = System.nanoTime();
+        Statement s = conn.createStatement();
+        for (String ddl : rebuild) {
+          s.execute(ddl);
+        }
+        s.close();
+      }
+      long indexedAt = System.nanoTime();
+      int seeded = replace ? reseedCapacities(conn) : seedCapacities(conn);
+      long seededAt = System.nanoTime();
+
+      double loadSeconds = (loadedAt - start) / 1e9;
+      System.out.println(String.format("Loaded %d flights in %.2f s (%.0f rows/s) with %d writers", rows,
+              loadSeconds, rows / Math.max(loadSeconds, 1e-9), loader.writers));
+      if (!rebuild.isEmpty()) {
+        System.out.println(String.format("Rebuilt %d indexes in %.2f s", rebuild.size(),
+                (indexedAt - loadedAt) / 1e9));
+      }
+      System.out.println(String.format("Seeded %d Capacities rows in %.2f s", seeded, (seededAt - indexedAt) / 1e9));
+    } finally {
+      pool.release(pc);
+    }
+  }
+}
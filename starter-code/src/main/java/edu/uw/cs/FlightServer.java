@@ -0,0 +1,388 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * TCP front end for FlightService.execute. Every connection is one session
+ * with its own Query, so login state and the last search results live as long
+ * as the connection. Clients send the REPL commands one per line and may
+ * pipeline them; responses come back in order, each framed as its length in
+ * bytes on a line of its own followed by the UTF-8 response. "quit" is
+ * answered and then the connection is closed. create-batch, which reads a
+ * file on this machine, is refused.
+ *
+ * A session stops reading once server.max_pipelined commands are waiting to
+ * run or to have their responses written. A line longer than
+ * server.max_line_bytes, or more commands than that arriving at once, is
+ * answered with an error and the connection is closed, so one client cannot
+ * fill the heap.
+ *
+ * One selector thread does all socket I/O without blocking. Commands run on a
+ * bounded worker pool, or on virtual threads where the JVM has them, and a
+ * session only ever runs one command at a time.
+ */
+class FlightServer {
+  private static final int READ_BUFFER_BYTES = 8192;
+  private static final String GOODBYE = "Goodbye\n";
+  private static final String BUSY = "Error: server busy, please retry\n";
+
+  private final Selector selector;
+  private final ServerSocketChannel listener;
+  private final ExecutorService workers;
+  private final int maxPipelined;
+  private final int maxLineBytes;
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+  // sessions whose interest ops must be recomputed on the selector thread
+  private final ConcurrentLinkedQueue<Session> changed = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Binds the server socket using the server.* settings
+   */
+  FlightServer(Properties config) throws IOException {
+    int port = intProperty(config, "server.port", 9414);
+    this.maxPipelined = Math.max(1, intProperty(config, "server.max_pipelined", 64));
+    this.maxLineBytes = Math.max(1, intProperty(config, "server.max_line_bytes", 4096));
+    this.workers = workers(config);
+    this.selector = Selector.open();
+    this.listener = ServerSocketChannel.open();
+    listener.bind(new InetSocketAddress(port), intProperty(config, "server.backlog", 128));
+    listener.configureBlocking(false);
+    listener.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  /**
+   * A fixed pool of server.workers threads with a queue of server.queue_size
+   * sessions waiting to run, or one virtual thread per running session if
+   * server.virtual_threads is true and the JVM supports them. Either way the
+   * connection pool bounds how many commands reach the database at once.
+   */
+  private static ExecutorService workers(Properties config) {
+    if (Boolean.parseBoolean(config.getProperty("server.virtual_threads", "false").trim())) {
+      try {
+        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        return (ExecutorService) factory.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        System.err.println("Virtual threads are not available on this JVM, using a worker pool");
+      }
+    }
+    int threads = Math.max(1, intProperty(config, "server.workers", 16));
+    int queueSize = Math.max(1, intProperty(config, "server.queue_size", 1024));
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+      private int next;
+
+      @Override
+      public synchronized Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "flight-server-worker-" + next++);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Port the server listens on
+   */
+  int port() throws IOException {
+    return ((InetSocketAddress) listener.getLocalAddress()).getPort();
+  }
+
+  /**
+   * Accepts connections and serves them until the thread is interrupted
+   */
+  void run() throws IOException {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        selector.select();
+        for (Session s = changed.poll(); s != null; s = changed.poll()) {
+          s.updateInterest();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Session s = (Session) key.attachment();
+          try {
+            if (key.isReadable()) {
+              s.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              s.write();
+            }
+          } catch (IOException e) {
+            s.close();                              // client went away
+          }
+        }
+      }
+    } finally {
+      workers.shutdown();
+      selector.close();
+      listener.close();
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = listener.accept();
+    if (channel == null) {
+      return;
+    }
+    Query q = new Query();
+    try {
+      q.openConnection();
+    } catch (Exception e) {
+      e.printStackTrace();
+      channel.close();
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    Session s = new Session(channel, q);
+    s.key = channel.register(selector, SelectionKey.OP_READ, s);
+  }
+
+  /**
+   * One client connection and the Query it drives
+   */
+  private final class Session implements Runnable {
+    private final SocketChannel channel;
+    private final Query query;
+    private SelectionKey key;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    // guarded by this: commands read but not yet run, and framed responses not yet written
+    private final ArrayDeque<String> commands = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> responses = new ArrayDeque<>();
+    private boolean running;                         // a worker is draining commands
+    private boolean quitting;                        // close once every response is written
+    private boolean closed;                          // the client is gone
+
+    Session(SocketChannel channel, Query query) {
+      this.channel = channel;
+      this.query = query;
+    }
+
+    /**
+     * Splits what the client sent into commands and queues them, or rejects
+     * the client once it goes over a limit
+     */
+    void read() throws IOException {
+      readBuffer.clear();
+      int n = channel.read(readBuffer);
+      if (n < 0) {
+        close();
+        return;
+      }
+      readBuffer.flip();
+      while (readBuffer.hasRemaining()) {
+        byte b = readBuffer.get();
+        if (b == '\n') {
+          String command = new String(line.toByteArray(), StandardCharsets.UTF_8);
+          line.reset();
+          if (!submit(command.endsWith("\r") ? command.substring(0, command.length() - 1) : command)) {
+            reject("Error: more than " + maxPipelined + " commands waiting\n");
+            return;
+          }
+        } else if (line.size() < maxLineBytes) {
+          line.write(b);
+        } else {
+          reject("Error: command longer than " + maxLineBytes + " bytes\n");
+          return;
+        }
+      }
+      updateInterest();
+    }
+
+    /**
+     * Queues a command and makes sure a worker runs it. Returns false if
+     * server.max_pipelined commands are already waiting.
+     */
+    private boolean submit(String command) {
+      synchronized (this) {
+        if (quitting) {
+          return true;                               // nothing after quit is run
+        }
+        if (commands.size() + responses.size() >= maxPipelined) {
+          return false;
+        }
+        commands.addLast(command);
+        if (running) {
+          return true;
+        }
+        running = true;
+      }
+      try {
+        workers.execute(this);
+      } catch (RejectedExecutionException e) {
+        synchronized (this) {                        // every worker is busy: fail fast rather than stall the selector
+          running = false;
+          while (commands.pollFirst() != null) {
+            responses.addLast(frame(BUSY));
+          }
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Drops what the client has not been sent yet, except the rest of a
+     * response already partly written, answers with the error, writes what
+     * the socket takes right away and closes the connection
+     */
+    private void reject(String error) throws IOException {
+      synchronized (this) {
+        quitting = true;
+        commands.clear();
+        ByteBuffer head = responses.peekFirst();
+        responses.clear();
+        if (head != null && head.position() > 0) {
+          responses.addLast(head);
+        }
+        responses.addLast(frame(error));
+        while (!responses.isEmpty() && channel.write(responses.peekFirst()) >= 0
+                && !responses.peekFirst().hasRemaining()) {
+          responses.pollFirst();
+        }
+      }
+      close();
+    }
+
+    /**
+     * Runs queued commands in order on a worker thread
+     */
+    @Override
+    public void run() {
+      while (true) {
+        String command;
+        synchronized (this) {
+          command = commands.pollFirst();
+          if (command == null) {
+            running = false;
+            if (closed) {
+              detach();
+            }
+            break;
+          }
+        }
+        String response;
+        try {
+          response = FlightService.executeRemote(query, command);
+        } catch (RuntimeException e) {
+          response = "Error: " + e.getMessage() + "\n";
+        }
+        synchronized (this) {
+          responses.addLast(frame(response));
+          if (response.equals(GOODBYE)) {
+            quitting = true;
+            commands.clear();
+          }
+        }
+        changed.add(this);
+        selector.wakeup();
+      }
+      changed.add(this);
+      selector.wakeup();
+    }
+
+    /**
+     * Writes as much of the queued responses as the socket takes
+     */
+    void write() throws IOException {
+      synchronized (this) {
+        while (!responses.isEmpty()) {
+          ByteBuffer head = responses.peekFirst();
+          channel.write(head);
+          if (head.hasRemaining()) {
+            break;
+          }
+          responses.pollFirst();
+        }
+      }
+      updateInterest();
+    }
+
+    /**
+     * Reads while fewer than server.max_pipelined commands or responses are
+     * waiting, writes
+     * while responses are waiting, and closes after quit has been answered.
+     * Only called on the selector thread.
+     */
+    void updateInterest() {
+      if (!key.isValid()) {
+        return;
+      }
+      int ops = 0;
+      boolean done;
+      synchronized (this) {
+        if (!quitting && commands.size() + responses.size() < maxPipelined) {
+          ops |= SelectionKey.OP_READ;
+        }
+        if (!responses.isEmpty()) {
+          ops |= SelectionKey.OP_WRITE;
+        }
+        done = quitting && !running && responses.isEmpty();
+      }
+      if (done) {
+        close();
+      } else {
+        key.interestOps(ops);
+      }
+    }
+
+    void close() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+      }
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      synchronized (this) {
+        closed = true;
+        commands.clear();
+        if (!running) {                              // otherwise the worker detaches the query when it stops
+          detach();
+        }
+      }
+    }
+
+    private void detach() {
+      try {
+        query.closeConnection();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private static ByteBuffer frame(String response) {
+    byte[] payload = response.getBytes(StandardCharsets.UTF_8);
+    byte[] header = (payload.length + "\n").getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(header.length + payload.length);
+    buffer.put(header).put(payload);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static int intProperty(Properties config, String name, int defaultValue) {
+    String value = config.getProperty(name);
+    return value == null ? defaultValue : Integer.parseInt(value.trim());
+  }
+}
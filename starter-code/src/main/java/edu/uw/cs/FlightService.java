@@ -7,11 +7,44 @@ import java.sql.*;
 
 public class FlightService {
 
+  private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList("login", "create", "create-batch", "search",
+          "book", "reservations", "pay", "cancel", "quit", "stats"));
+
+  // Commands that read files on this machine, which remote clients may not run
+  private static final Set<String> LOCAL_COMMANDS = Collections.singleton("create-batch");
+
+  // Lines of a create-batch file handed to Query at a time
+  private static final int CREATE_BATCH_LINES = 10000;
+
   /**
-   * Execute the specified command on the database query connection
+   * Execute the specified command on the database query connection, recording
+   * its latency and database round trips under the command name
    */
   public static String execute(Query q, String command) {
     String[] tokens = tokenize(command.trim());
+    Metrics metrics = Metrics.getInstance();
+    long start = metrics.startCommand();
+    try {
+      return dispatch(q, tokens);
+    } finally {
+      String name = tokens.length == 0 ? "empty" : tokens[0];
+      metrics.endCommand(COMMANDS.contains(name) ? name : "unknown", start);
+    }
+  }
+
+  /**
+   * Execute a command sent by a remote client, refusing the commands that
+   * read files on this machine
+   */
+  static String executeRemote(Query q, String command) {
+    String[] tokens = tokenize(command.trim());
+    if (tokens.length > 0 && LOCAL_COMMANDS.contains(tokens[0])) {
+      return "Error: " + tokens[0] + " is not available over the server\n";
+    }
+    return execute(q, command);
+  }
+
+  private static String dispatch(Query q, String[] tokens) {
     String response;
 
     // empty input
@@ -42,21 +75,31 @@ public class FlightService {
       }
     }
 
-    // search
+    // create-batch, one "<username> <password> <initial amount>" per line of a file
+    else if (tokens[0].equals("create-batch")) {
+      if (tokens.length == 2) {
+        response = createBatch(q, tokens[1]);
+      } else {
+        response = "Error: Please provide a file of users";
+      }
+    }
+
+    // search, optionally with the most flights per itinerary
     else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
+      if (tokens.length == 6 || tokens.length == 7) {
         String originCity = tokens[1];
         String destinationCity = tokens[2];
         boolean direct = tokens[3].equals("1");
         try {
           int day = Integer.valueOf(tokens[4]);
           int count = Integer.valueOf(tokens[5]);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
+          int maxHops = tokens.length == 7 ? Integer.valueOf(tokens[6]) : 2;
+          response = q.transaction_search(originCity, destinationCity, direct, day, count, maxHops);
         } catch (NumberFormatException e) {
           response = "Failed to parse integer";
         }
       } else {
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries> [<max hops>]";
       }
     }
 
@@ -85,16 +128,31 @@ public class FlightService {
       }
     }
 
-    // cancel
+    // cancel, one or more reservations
     else if (tokens[0].equals("cancel")) {
       if (tokens.length == 2) {
         int reservation_id = Integer.parseInt(tokens[1]);
         response = q.transaction_cancel(reservation_id);
+      } else if (tokens.length > 2) {
+        try {
+          int[] reservation_ids = new int[tokens.length - 1];
+          for (int i = 1; i < tokens.length; i++) {
+            reservation_ids[i - 1] = Integer.parseInt(tokens[i]);
+          }
+          response = q.transaction_cancel(reservation_ids);
+        } catch (NumberFormatException e) {
+          response = "Failed to parse integer";
+        }
       } else {
         response = "Error: Please provide a reservation_id";
       }
     }
 
+    // stats
+    else if (tokens[0].equals("stats")) {
+      response = Metrics.getInstance().report();
+    }
+
     // quit
     else if (tokens[0].equals("quit")) {
       response = "Goodbye\n";
@@ -110,20 +168,138 @@ public class FlightService {
 
   /**
    * Establishes an application-to-database connection and runs the Flights
-   * application REPL
+   * application REPL, or with "server [port]" serves the same commands over
+   * TCP. "load [options]" runs the load generator instead (see LoadGenerator),
+   * "replay [dir]" rebuilds the tables from the event log (see EventLog),
+   * "import-flights [--replace] <csv>" bulk loads Flights (see FlightLoader)
+   * and "advise" prints the plan of every canned statement (see
+   * QueryPlanAdvisor).
    * 
    * @param args
    * @throws IOException
    */
-  public static void main(String[] args) throws IOException, SQLException {
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("load")) {
+      LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+    if (args.length > 0 && args[0].equals("replay")) {
+      EventLog.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+    if (args.length > 0 && args[0].equals("import-flights")) {
+      FlightLoader.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+    if (args.length > 0 && args[0].equals("advise")) {
+      QueryPlanAdvisor.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
     /* prepare the database connection stuff */
     Query q = new Query();
     q.openConnection();
     q.prepareStatements();
-    menu(q);
+    if (args.length > 0 && args[0].equals("server")) {
+      serve(args.length > 1 ? args[1] : null);
+    } else {
+      menu(q);
+    }
     q.closeConnection();
   }
 
+  /**
+   * Creates the users of a file, each line like the arguments of create.
+   * Lists every line that did not create a user, then the totals.
+   */
+  private static String createBatch(Query q, String file) {
+    StringBuilder sb = new StringBuilder();
+    int[] totals = new int[2];                                  // created, failed
+    List<String> usernames = new ArrayList<>();
+    List<String> passwords = new ArrayList<>();
+    List<Integer> amounts = new ArrayList<>();
+    List<Integer> lineNumbers = new ArrayList<>();
+    TreeMap<Integer, String> failures = new TreeMap<>();        // of the lines read since the last batch
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+          lineNumber++;
+          String[] fields = tokenize(line.trim());
+          if (fields.length == 0) {
+            continue;
+          }
+          if (fields.length != 3) {
+            failures.put(lineNumber, "Error: Please provide a username, password, and initial amount in the account\n");
+            continue;
+          }
+          try {
+            amounts.add(Integer.parseInt(fields[2]));
+          } catch (NumberFormatException e) {
+            failures.put(lineNumber, "Failed to parse integer\n");
+            continue;
+          }
+          usernames.add(fields[0]);
+          passwords.add(fields[1]);
+          lineNumbers.add(lineNumber);
+          if (usernames.size() == CREATE_BATCH_LINES) {
+            createUsers(q, usernames, passwords, amounts, lineNumbers, failures, sb, totals);
+          }
+        }
+        createUsers(q, usernames, passwords, amounts, lineNumbers, failures, sb, totals);
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      sb.append("Failed to read ").append(file).append("\n");
+    }
+    return sb.append("Created ").append(totals[0]).append(" users, ").append(totals[1]).append(" failed\n")
+            .toString();
+  }
+
+  private static void createUsers(Query q, List<String> usernames, List<String> passwords, List<Integer> amounts,
+                                  List<Integer> lineNumbers, TreeMap<Integer, String> failures, StringBuilder sb,
+                                  int[] totals) {
+    int[] initAmounts = new int[amounts.size()];
+    for (int i = 0; i < initAmounts.length; i++) {
+      initAmounts[i] = amounts.get(i);
+    }
+    String[] responses = q.transaction_createCustomers(usernames.toArray(new String[0]),
+            passwords.toArray(new String[0]), initAmounts);
+    for (int i = 0; i < responses.length; i++) {
+      if (responses[i].startsWith("Created user")) {
+        totals[0]++;
+      } else {
+        failures.put(lineNumbers.get(i), responses[i]);
+      }
+    }
+    for (Map.Entry<Integer, String> e : failures.entrySet()) {   // in line order
+      sb.append("Line ").append(e.getKey()).append(": ").append(e.getValue());
+    }
+    totals[1] += failures.size();
+    failures.clear();
+    usernames.clear();
+    passwords.clear();
+    amounts.clear();
+    lineNumbers.clear();
+  }
+
+  /**
+   * Runs the TCP server with the server.* settings from dbconn.properties,
+   * optionally on another port
+   */
+  private static void serve(String port) throws IOException, SQLException {
+    Properties config = new Properties();
+    config.putAll(ConnectionPool.getInstance().config());
+    if (port != null) {
+      config.setProperty("server.port", port);
+    }
+    FlightServer server = new FlightServer(config);
+    System.out.println("Listening on port " + server.port());
+    server.run();
+  }
+
   /**
    * REPL (Read-Execute-Print-Loop) for Flights application for the specified
    * application-to-database connection
@@ -137,12 +313,14 @@ public class FlightService {
       System.out.println();
       System.out.println(" *** Please enter one of the following commands *** ");
       System.out.println("> create <username> <password> <initial amount>");
+      System.out.println("> create-batch <file of create arguments, one user per line>");
       System.out.println("> login <username> <password>");
-      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries> [<max hops>]");
       System.out.println("> book <itinerary id>");
       System.out.println("> pay <reservation id>");
       System.out.println("> reservations");
-      System.out.println("> cancel <reservation id>");
+      System.out.println("> cancel <reservation id> [<reservation id> ...]");
+      System.out.println("> stats");
       System.out.println("> quit");
 
       // read an input command from the REPL
@@ -0,0 +1,126 @@
+package edu.uw.cs;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The itineraries a session may book: those of its latest search only. Each
+ * itinerary is packed into one int array as its day, cost, number of legs and
+ * the fid of every leg, so a session costs a few hundred bytes however many
+ * searches it runs. At most session.max_itineraries are kept, and they
+ * expire session.itinerary_ttl_ms after the search (0 keeps them until the
+ * next search).
+ */
+class ItineraryStore {
+  private static final int DAY = 0;
+  private static final int COST = 1;
+  private static final int LEGS = 2;
+  private static final int HEADER = 3;                  // fids follow the header
+
+  // Room for this many one- or two-leg itineraries is allocated up front; larger arrays are dropped at the next search
+  private static final int INITIAL_ITINERARIES = 8;
+  private static final int MAX_RETAINED_ITINERARIES = 64;
+  private static final int INITIAL_INTS = INITIAL_ITINERARIES * (HEADER + 2);
+
+  private final int maxItineraries;
+  private final long ttlNanos;
+  private int[] packed = new int[INITIAL_INTS];
+  private int[] starts = new int[INITIAL_ITINERARIES];   // where each itinerary begins in packed
+  private int size;
+  private int used;                                       // ints of packed in use
+  private long expiresAt;
+
+  ItineraryStore(int maxItineraries, long ttlMillis) {
+    this.maxItineraries = Math.max(1, maxItineraries);
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+  }
+
+  /**
+   * A store with the session.* settings
+   */
+  static ItineraryStore fromConfig(Properties config) {
+    int maxItineraries = Integer.parseInt(config.getProperty("session.max_itineraries", "1000").trim());
+    long ttlMillis = Long.parseLong(config.getProperty("session.itinerary_ttl_ms", "1800000").trim());
+    return new ItineraryStore(maxItineraries, ttlMillis);
+  }
+
+  /**
+   * Forgets the previous search; called before a new one is stored
+   */
+  void clear() {
+    release();
+    expiresAt = System.nanoTime() + ttlNanos;
+  }
+
+  /**
+   * Appends an itinerary of the current search. Returns false, storing
+   * nothing, once the cap is reached.
+   */
+  boolean add(Query.Flight[] flights) {
+    if (size == maxItineraries) {
+      return false;
+    }
+    if (size == starts.length) {
+      starts = Arrays.copyOf(starts, Math.min(maxItineraries, size * 2));
+    }
+    int length = HEADER + flights.length;
+    if (used + length > packed.length) {
+      packed = Arrays.copyOf(packed, Math.max(used + length, packed.length * 2));
+    }
+    int cost = 0;
+    for (int i = 0; i < flights.length; i++) {
+      cost += flights[i].price;
+      packed[used + HEADER + i] = flights[i].fid;
+    }
+    packed[used + DAY] = flights[0].dayOfMonth;
+    packed[used + COST] = cost;
+    packed[used + LEGS] = flights.length;
+    starts[size++] = used;
+    used += length;
+    return true;
+  }
+
+  /**
+   * Whether itinerary i of the latest search can still be booked
+   */
+  boolean contains(int i) {
+    if (i < 0 || i >= size) {
+      return false;
+    }
+    if (ttlNanos > 0 && System.nanoTime() - expiresAt >= 0) {
+      release();                                        // expired: release the slots too
+      return false;
+    }
+    return true;
+  }
+
+  int day(int i) {
+    return packed[starts[i] + DAY];
+  }
+
+  /**
+   * Total price of the itinerary's flights
+   */
+  int cost(int i) {
+    return packed[starts[i] + COST];
+  }
+
+  /**
+   * fid of every leg, in order
+   */
+  int[] fids(int i) {
+    int start = starts[i] + HEADER;
+    return Arrays.copyOfRange(packed, start, start + packed[starts[i] + LEGS]);
+  }
+
+  private void release() {
+    if (starts.length > MAX_RETAINED_ITINERARIES) {
+      starts = new int[INITIAL_ITINERARIES];
+      packed = new int[INITIAL_INTS];
+    } else if (packed.length > MAX_RETAINED_ITINERARIES * (HEADER + 2)) {
+      packed = new int[INITIAL_INTS];
+    }
+    size = 0;
+    used = 0;
+  }
+}
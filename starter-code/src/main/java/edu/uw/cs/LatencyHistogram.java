@@ -0,0 +1,83 @@
+package edu.uw.cs;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram: every power of
+ * two is split into 16 linear buckets, so a recorded value is reported within
+ * about 6% of what it was, from nanoseconds up to days, in a fixed 8 KB.
+ */
+class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records one value, in nanoseconds
+   */
+  void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(bucket(value));
+    count.increment();
+    long seen = max.get();
+    while (value > seen && !max.compareAndSet(seen, value)) {
+      seen = max.get();
+    }
+  }
+
+  long count() {
+    return count.sum();
+  }
+
+  long max() {
+    return max.get();
+  }
+
+  /**
+   * The smallest bucket bound that at least the given fraction of values do
+   * not exceed, e.g. 0.99 for p99; 0 if nothing was recorded
+   */
+  long percentile(double fraction) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  private static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int top = 63 - Long.numberOfLeadingZeros(value);       // position of the highest set bit
+    int sub = (int) (value >>> (top - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (top - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  private static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int top = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    long width = 1L << (top - SUB_BITS);
+    long lower = (1L << top) | ((long) (bucket % SUB_BUCKETS) << (top - SUB_BITS));
+    return lower + width - 1;
+  }
+}
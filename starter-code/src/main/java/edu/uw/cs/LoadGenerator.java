@@ -0,0 +1,573 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Drives many concurrent sessions through FlightService.execute and reports
+ * throughput, latency percentiles per command, error counts and whether any
+ * flight was sold beyond its capacity. Run with "FlightService load" and:
+ *
+ * --users N        sessions running at once (default 16)
+ * --rate R         start R sessions per second, queueing for a free user
+ *                  (open model); without it every user starts its next
+ *                  session as soon as the last one ends (closed model)
+ * --duration S     stop starting sessions after S seconds (default 30)
+ * --actions N      commands per synthetic session after create and login
+ *                  (default 10)
+ * --mix M          weights of the synthetic commands, e.g. the default
+ *                  search=40,book=25,pay=15,cancel=5,reservations=15
+ * --scenario F     replay the users of cases/ scenario file F, each session
+ *                  under fresh usernames, instead of synthetic sessions
+ * --record F       write the commands every session ran to F in the
+ *                  scenario format, so a run can be replayed
+ * --save F         write the results to F as properties
+ * --compare F      print the results next to those saved in F
+ * --clear          clear the tables first (as clearTables does for tests)
+ * --seed N         random seed for the synthetic sessions
+ */
+class LoadGenerator {
+  private static final String[] COMMANDS = { "create", "login", "search", "book", "pay", "cancel", "reservations" };
+  private static final String DEFAULT_MIX = "search=40,book=25,pay=15,cancel=5,reservations=15";
+  private static final String PASSWORD = "load";
+  private static final int BALANCE = 1000000;
+  private static final String BOOKED = "Booked flight(s), reservation ID: ";
+
+  // Responses for failures of the system rather than of the request
+  private static final String[] ERRORS = { "Error", "Failed to search\n", "Failed to retrieve reservations\n",
+      "Failed to create user\n", "Failed to pay for reservation" };
+  // Responses that turn a request down for a business reason: sold out, not enough money and so on
+  private static final String[] REJECTIONS = { "Booking failed", "Cannot", "No such", "No reservations", "You cannot",
+      "User has only", "User already", "Failed to", "Login failed", "No flights match" };
+
+  // Flights with more live reservations than seats, counting every leg of an itinerary
+  private static final String OVERSOLD = "SELECT F.fid, F.capacity, COUNT(*) FROM Flights F, ("
+          + "SELECT fid1 AS fid FROM Reservation WHERE canceled = 0 "
+          + "UNION ALL SELECT fid2 FROM Reservation WHERE canceled = 0 AND fid2 <> 0 "
+          + "UNION ALL SELECT L.fid FROM ReservationLegs L, Reservation R WHERE L.rid = R.rid AND R.canceled = 0"
+          + ") S WHERE S.fid = F.fid GROUP BY F.fid, F.capacity HAVING COUNT(*) > F.capacity;";
+  private static final String NEGATIVE_CAPACITIES = "SELECT COUNT(*) FROM Capacities WHERE capacity < 0;";
+
+  private int users = 16;
+  private double rate;
+  private long durationMillis = 30000;
+  private int actions = 10;
+  private String[] mixNames;
+  private int[] mixWeights;
+  private List<List<String>> scenario;                          // commands of each user
+  private String recordFile;
+  private String saveFile;
+  private String compareFile;
+  private boolean clear;
+  private long seed = System.nanoTime();
+
+  private final String runId = Long.toString(System.currentTimeMillis() % 60466176L, 36);  // five base-36 digits
+  private final AtomicInteger sessionIds = new AtomicInteger();
+  private final Map<String, CommandStats> stats = new LinkedHashMap<>();
+  private final LatencyHistogram startDelay = new LatencyHistogram();  // intended vs actual session start
+  private final LongAdder sessions = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final ConcurrentLinkedQueue<List<String>> recorded = new ConcurrentLinkedQueue<>();
+  private FlightCache flights;
+
+  LoadGenerator(String[] args) throws IOException {
+    mix(DEFAULT_MIX);
+    for (int i = 0; i < args.length; i++) {
+      String option = args[i];
+      if (option.equals("--clear")) {
+        clear = true;
+        continue;
+      }
+      if (i + 1 == args.length) {
+        throw new IllegalArgumentException("Missing value for " + option);
+      }
+      String value = args[++i];
+      if (option.equals("--users")) {
+        users = Math.max(1, Integer.parseInt(value));
+      } else if (option.equals("--rate")) {
+        rate = Double.parseDouble(value);
+      } else if (option.equals("--duration")) {
+        durationMillis = (long) (Double.parseDouble(value) * 1000);
+      } else if (option.equals("--actions")) {
+        actions = Integer.parseInt(value);
+      } else if (option.equals("--mix")) {
+        mix(value);
+      } else if (option.equals("--scenario")) {
+        scenario = readCommands(value);
+      } else if (option.equals("--record")) {
+        recordFile = value;
+      } else if (option.equals("--save")) {
+        saveFile = value;
+      } else if (option.equals("--compare")) {
+        compareFile = value;
+      } else if (option.equals("--seed")) {
+        seed = Long.parseLong(value);
+      } else {
+        throw new IllegalArgumentException("Unknown option " + option);
+      }
+    }
+    for (String command : COMMANDS) {
+      stats.put(command, new CommandStats());
+    }
+    stats.put("other", new CommandStats());
+  }
+
+  /**
+   * Runs the load, prints the results and saves or compares them if asked
+   */
+  static void main(String[] args) throws Exception {
+    new LoadGenerator(args).run();
+  }
+
+  void run() throws Exception {
+    Query setup = new Query();
+    setup.openConnection();
+    if (clear) {
+      setup.clearTables();
+    }
+    flights = FlightCache.getInstance(ConnectionPool.getInstance());
+    setup.closeConnection();
+    if (scenario == null && flights.size() == 0) {
+      throw new IllegalStateException("Flights is empty, there is nothing to search for");
+    }
+
+    long start = System.nanoTime();
+    if (rate > 0) {
+      runOpen(start);
+    } else {
+      runClosed(start);
+    }
+    long elapsed = System.nanoTime() - start;
+
+    Properties results = results(elapsed);
+    System.out.print(report(results));
+    if (compareFile != null) {
+      System.out.print(compare(load(compareFile), results));
+    }
+    if (saveFile != null) {
+      OutputStream out = new FileOutputStream(saveFile);
+      try {
+        results.store(out, "FlightService load");
+      } finally {
+        out.close();
+      }
+    }
+    if (recordFile != null) {
+      Writer out = new BufferedWriter(new FileWriter(recordFile));
+      try {
+        writeCommands(recorded, out);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Every user runs one session after another until the duration is up
+   */
+  private void runClosed(final long start) throws InterruptedException {
+    final long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < users; i++) {
+      final Random random = new Random(seed + i);
+      Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          while (System.nanoTime() - deadline < 0) {
+            session(random);
+          }
+        }
+      }, "load-user-" + i);
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+  }
+
+  /**
+   * Sessions arrive at the given rate, as a Poisson process, and wait for one
+   * of the users to be free. How long they waited is reported as the start
+   * delay, so a saturated system shows up in the results rather than slowing
+   * the arrivals down.
+   */
+  private void runOpen(long start) throws InterruptedException {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(users, users, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(Math.max(users, (int) (rate * 10))));
+    Random arrivals = new Random(seed);
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+    long next = start;
+    int n = 0;
+    while (next - deadline < 0) {
+      long wait = next - System.nanoTime();
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+      final long intended = next;
+      final Random random = new Random(seed + ++n);
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            startDelay.record(System.nanoTime() - intended);
+            session(random);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        dropped.increment();                              // ten seconds of arrivals already queued
+      }
+      next += (long) (-Math.log(1 - arrivals.nextDouble()) / rate * 1e9);
+    }
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+  }
+
+  /**
+   * One session on a fresh Query: a synthetic user, or the next scenario user
+   */
+  private void session(Random random) {
+    int id = sessionIds.incrementAndGet();
+    Query q = new Query();
+    try {
+      q.openConnection();
+    } catch (Exception e) {
+      e.printStackTrace();
+      return;
+    }
+    List<String> ran = new ArrayList<>();
+    try {
+      if (scenario != null) {
+        for (String command : scenario.get(id % scenario.size())) {
+          execute(q, rename(command, id), ran);
+        }
+      } else {
+        synthetic(q, random, "lg" + runId + "u" + Integer.toString(id, 36), ran);
+      }
+    } finally {
+      try {
+        q.closeConnection();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+    sessions.increment();
+    if (recordFile != null) {
+      recorded.add(ran);
+    }
+  }
+
+  private void synthetic(Query q, Random random, String username, List<String> ran) {
+    execute(q, "create " + username + " " + PASSWORD + " " + BALANCE, ran);
+    execute(q, "login " + username + " " + PASSWORD, ran);
+    boolean searched = false;
+    List<Integer> unpaid = new ArrayList<>();
+    List<Integer> held = new ArrayList<>();
+    for (int i = 0; i < actions; i++) {
+      String action = pick(random);
+      if (action.equals("book") && !searched) {
+        action = "search";                                // book refers to the latest search
+      }
+      if (action.equals("pay") && unpaid.isEmpty() || action.equals("cancel") && held.isEmpty()) {
+        action = "reservations";
+      }
+      if (action.equals("search")) {
+        searched = execute(q, search(random), ran).startsWith("Itinerary");
+      } else if (action.equals("book")) {
+        String response = execute(q, "book 0", ran);
+        if (response.startsWith(BOOKED)) {
+          int rid = Integer.parseInt(response.substring(BOOKED.length()).trim());
+          unpaid.add(rid);
+          held.add(rid);
+        }
+      } else if (action.equals("pay")) {
+        execute(q, "pay " + unpaid.remove(random.nextInt(unpaid.size())), ran);
+      } else if (action.equals("cancel")) {
+        Integer rid = held.remove(random.nextInt(held.size()));
+        unpaid.remove(rid);
+        execute(q, "cancel " + rid, ran);
+      } else {
+        execute(q, "reservations", ran);
+      }
+    }
+  }
+
+  /**
+   * A search along the route of a random flight, so most searches find
+   * something
+   */
+  private String search(Random random) {
+    int i = random.nextInt(flights.size());
+    Query.Flight f = flights.flightAt(i);
+    return "search \"" + f.originCity + "\" \"" + f.destCity + "\" " + (random.nextBoolean() ? 1 : 0) + " "
+            + f.dayOfMonth + " " + (1 + random.nextInt(10));
+  }
+
+  private String execute(Query q, String command, List<String> ran) {
+    ran.add(command);
+    String name = command.trim().split("\\s+", 2)[0];
+    CommandStats s = stats.containsKey(name) ? stats.get(name) : stats.get("other");
+    long start = System.nanoTime();
+    String response;
+    try {
+      response = FlightService.execute(q, command);
+    } catch (RuntimeException e) {
+      s.record(System.nanoTime() - start, true, false);
+      return "Error: " + e;
+    }
+    s.record(System.nanoTime() - start, startsWithAny(response, ERRORS), startsWithAny(response, REJECTIONS));
+    return response;
+  }
+
+  /**
+   * The commands of every user of a cases/ scenario file. Expected outputs
+   * and "#" comments are skipped; only FlightServiceTest checks outcomes.
+   */
+  static List<List<String>> readCommands(String file) throws IOException {
+    List<List<String>> users = new ArrayList<>();
+    List<String> commands = new ArrayList<>();
+    boolean inCommands = true;
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("#")) {
+          continue;
+        } else if (line.startsWith("*")) {
+          if (inCommands) {
+            users.add(commands);                                // its outputs follow until the next "*"
+            commands = new ArrayList<>();
+          }
+          inCommands = !inCommands;
+        } else if (inCommands) {
+          commands.add(line.split("#", 2)[0]);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    if (users.isEmpty()) {
+      throw new IllegalArgumentException("No users in scenario " + file);
+    }
+    return users;
+  }
+
+  /**
+   * Writes the commands of each user in the scenario format, with an empty
+   * expected output
+   */
+  static void writeCommands(Collection<List<String>> users, Writer out) throws IOException {
+    for (List<String> commands : users) {
+      for (String command : commands) {
+        out.write(command);
+        out.write('\n');
+      }
+      out.write("*\n*\n");
+    }
+    out.flush();
+  }
+
+  private static boolean startsWithAny(String response, String[] prefixes) {
+    for (String prefix : prefixes) {
+      if (response.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The usernames of a scenario command made unique to this session
+   */
+  private String rename(String command, int id) {
+    String[] tokens = command.trim().split("\\s+");
+    if (tokens.length < 2 || !(tokens[0].equals("create") || tokens[0].equals("login"))) {
+      return command;
+    }
+    String suffix = "." + runId + Integer.toString(id, 36);
+    String name = tokens[1].length() + suffix.length() > 20 ? tokens[1].substring(0, 20 - suffix.length()) : tokens[1];
+    tokens[1] = name + suffix;
+    StringBuilder sb = new StringBuilder(tokens[0]);
+    for (int i = 1; i < tokens.length; i++) {
+      sb.append(' ').append(tokens[i]);
+    }
+    return sb.toString();
+  }
+
+  private void mix(String spec) {
+    String[] parts = spec.split(",");
+    mixNames = new String[parts.length];
+    mixWeights = new int[parts.length];
+    int total = 0;
+    for (int i = 0; i < parts.length; i++) {
+      String[] kv = parts[i].trim().split("=");
+      mixNames[i] = kv[0].trim();
+      total += Integer.parseInt(kv[1].trim());
+      mixWeights[i] = total;                              // cumulative
+    }
+    if (total <= 0) {
+      throw new IllegalArgumentException("The mix needs a positive weight: " + spec);
+    }
+  }
+
+  private String pick(Random random) {
+    int r = random.nextInt(mixWeights[mixWeights.length - 1]);
+    for (int i = 0; i < mixWeights.length; i++) {
+      if (r < mixWeights[i]) {
+        return mixNames[i];
+      }
+    }
+    return mixNames[mixNames.length - 1];
+  }
+
+  private Properties results(long elapsedNanos) throws IOException, SQLException {
+    Properties results = new Properties();
+    double seconds = elapsedNanos / 1e9;
+    long commands = 0;
+    long errors = 0;
+    for (Map.Entry<String, CommandStats> e : stats.entrySet()) {
+      CommandStats s = e.getValue();
+      long count = s.latency.count();
+      if (count == 0) {
+        continue;
+      }
+      commands += count;
+      errors += s.errors.sum();
+      String prefix = e.getKey() + ".";
+      results.setProperty(prefix + "count", Long.toString(count));
+      results.setProperty(prefix + "p50_us", micros(s.latency.percentile(0.5)));
+      results.setProperty(prefix + "p99_us", micros(s.latency.percentile(0.99)));
+      results.setProperty(prefix + "p999_us", micros(s.latency.percentile(0.999)));
+      results.setProperty(prefix + "max_us", micros(s.latency.max()));
+      results.setProperty(prefix + "errors", Long.toString(s.errors.sum()));
+      results.setProperty(prefix + "rejected", Long.toString(s.rejected.sum()));
+    }
+    results.setProperty("seconds", String.format(Locale.ROOT, "%.2f", seconds));
+    results.setProperty("sessions", Long.toString(sessions.sum()));
+    results.setProperty("commands", Long.toString(commands));
+    results.setProperty("errors", Long.toString(errors));
+    results.setProperty("throughput", String.format(Locale.ROOT, "%.1f", commands / seconds));
+    if (rate > 0) {
+      results.setProperty("dropped_sessions", Long.toString(dropped.sum()));
+      results.setProperty("start_delay.p50_us", micros(startDelay.percentile(0.5)));
+      results.setProperty("start_delay.p99_us", micros(startDelay.percentile(0.99)));
+      results.setProperty("start_delay.max_us", micros(startDelay.max()));
+    }
+    oversold(results);
+    return results;
+  }
+
+  /**
+   * Checks the seat invariant once the load is over: no flight has more live
+   * reservations than seats, and no Capacities row went negative
+   */
+  private static void oversold(Properties results) throws IOException, SQLException {
+    ConnectionPool pool = ConnectionPool.getInstance();
+    PooledConnection pc = pool.borrow();
+    try {
+      int flightsOver = 0;
+      int seatsOver = 0;
+      ResultSet rs = pc.prepare(OVERSOLD).executeQuery();
+      while (rs.next()) {
+        flightsOver++;
+        seatsOver += rs.getInt(3) - rs.getInt(2);
+      }
+      rs.close();
+      rs = pc.prepare(NEGATIVE_CAPACITIES).executeQuery();
+      rs.next();
+      results.setProperty("oversold_flights", Integer.toString(flightsOver));
+      results.setProperty("oversold_seats", Integer.toString(seatsOver));
+      results.setProperty("negative_capacities", Integer.toString(rs.getInt(1)));
+      rs.close();
+    } finally {
+      pool.release(pc);
+    }
+  }
+
+  private static String report(Properties results) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%d sessions, %s commands in %s s: %s commands/s, %s errors%n",
+            Long.parseLong(results.getProperty("sessions")), results.getProperty("commands"),
+            results.getProperty("seconds"), results.getProperty("throughput"), results.getProperty("errors")));
+    sb.append(String.format("%-14s %10s %10s %10s %10s %10s %10s %10s%n", "command", "count", "p50 us", "p99 us",
+            "p999 us", "max us", "errors", "rejected"));
+    for (String command : new TreeSet<>(prefixes(results))) {
+      sb.append(String.format("%-14s %10s %10s %10s %10s %10s %10s %10s%n", command,
+              results.getProperty(command + ".count"), results.getProperty(command + ".p50_us"),
+              results.getProperty(command + ".p99_us"), results.getProperty(command + ".p999_us"),
+              results.getProperty(command + ".max_us"), results.getProperty(command + ".errors"),
+              results.getProperty(command + ".rejected")));
+    }
+    if (results.getProperty("dropped_sessions") != null) {
+      sb.append(String.format("session start delay: p50 %s us, p99 %s us, max %s us; %s sessions dropped%n",
+              results.getProperty("start_delay.p50_us"), results.getProperty("start_delay.p99_us"),
+              results.getProperty("start_delay.max_us"), results.getProperty("dropped_sessions")));
+    }
+    sb.append(String.format("oversold: %s flights by %s seats, %s negative Capacities rows%n",
+            results.getProperty("oversold_flights"), results.getProperty("oversold_seats"),
+            results.getProperty("negative_capacities")));
+    return sb.toString();
+  }
+
+  /**
+   * Every numeric result of both runs with the change from the baseline
+   */
+  private static String compare(Properties baseline, Properties results) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%n%-28s %14s %14s %10s%n", "compared to baseline", "baseline", "this run", "change"));
+    for (String name : new TreeSet<>(results.stringPropertyNames())) {
+      String before = baseline.getProperty(name);
+      if (before == null) {
+        continue;
+      }
+      double b = Double.parseDouble(before);
+      double a = Double.parseDouble(results.getProperty(name));
+      String change = b == 0 ? (a == 0 ? "0%" : "new") : String.format("%+.1f%%", (a - b) * 100 / b);
+      sb.append(String.format("%-28s %14s %14s %10s%n", name, before, results.getProperty(name), change));
+    }
+    return sb.toString();
+  }
+
+  private static Set<String> prefixes(Properties results) {
+    Set<String> commands = new HashSet<>();
+    for (String name : results.stringPropertyNames()) {
+      if (name.endsWith(".count")) {
+        commands.add(name.substring(0, name.length() - ".count".length()));
+      }
+    }
+    return commands;
+  }
+
+  private static Properties load(String file) throws IOException {
+    Properties p = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      p.load(in);
+    } finally {
+      in.close();
+    }
+    return p;
+  }
+
+  private static String micros(long nanos) {
+    return String.format(Locale.ROOT, "%.1f", nanos / 1e3);
+  }
+
+  private static final class CommandStats {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder errors = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+
+    void record(long nanos, boolean error, boolean reject) {
+      latency.record(nanos);
+      if (error) {
+        errors.increment();
+      } else if (reject) {
+        rejected.increment();
+      }
+    }
+  }
+}
@@ -0,0 +1,262 @@
+package edu.uw.cs;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * Process-wide counters and latency histograms: per command run through
+ * FlightService.execute, per prepared statement, and for waiting on a pooled
+ * connection. Each command also records how many database round trips it
+ * made. Recording is lock-free, so metrics stay on in production; they are
+ * read through the "stats" command or JMX as edu.uw.cs:type=FlightMetrics.
+ */
+class Metrics {
+  private static final String OBJECT_NAME = "edu.uw.cs:type=FlightMetrics";
+  private static final Metrics INSTANCE = new Metrics();
+
+  /**
+   * A value read when metrics are reported, e.g. the pool's idle connections
+   */
+  interface Gauge {
+    long value();
+  }
+
+  private final ConcurrentHashMap<String, Timer> commands = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Timer> statements = new ConcurrentHashMap<>();
+  private final LatencyHistogram connectionWait = new LatencyHistogram();
+  private final ConcurrentSkipListMap<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+  // round trips made by the command running on this thread
+  private final ThreadLocal<long[]> roundTrips = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[1];
+    }
+  };
+
+  private Metrics() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName(OBJECT_NAME));
+    } catch (JMException e) {
+      e.printStackTrace();
+    }
+  }
+
+  static Metrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Marks the start of a command on this thread and returns its start time
+   */
+  long startCommand() {
+    roundTrips.get()[0] = 0;
+    return System.nanoTime();
+  }
+
+  /**
+   * Records a command started with startCommand on this thread
+   */
+  void endCommand(String command, long startNanos) {
+    timer(commands, command).record(System.nanoTime() - startNanos, roundTrips.get()[0]);
+  }
+
+  /**
+   * Records one execution of a prepared statement, which is one round trip
+   */
+  void statement(String sql, long nanos, boolean failed) {
+    roundTrips.get()[0]++;
+    Timer timer = timer(statements, sql);
+    timer.record(nanos, 1);
+    if (failed) {
+      timer.errors.increment();
+    }
+  }
+
+  /**
+   * Counts a round trip that is not a prepared statement, e.g. a commit
+   */
+  void roundTrip() {
+    roundTrips.get()[0]++;
+  }
+
+  /**
+   * Records how long a session waited to borrow a connection
+   */
+  void connectionWait(long nanos) {
+    connectionWait.record(nanos);
+  }
+
+  void gauge(String name, Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /**
+   * Plain-text report of everything recorded so far, latencies in
+   * microseconds
+   */
+  String report() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-14s %10s %10s %10s %10s %10s %12s%n", "command", "count", "p50", "p99", "p999", "max",
+            "round trips"));
+    for (Map.Entry<String, Timer> e : new TreeMap<>(commands).entrySet()) {
+      Timer t = e.getValue();
+      sb.append(String.format("%-14s %10d %s %12.2f%n", e.getKey(), t.latency.count(), latencies(t.latency),
+              t.roundTripsPerCall()));
+    }
+    sb.append(String.format("%n%-14s %10d %s%n", "connection wait", connectionWait.count(),
+            latencies(connectionWait)));
+    sb.append(String.format("%nstatements%n%10s %10s %10s %10s %10s %10s  %s%n", "count", "errors", "p50", "p99",
+            "p999", "max", "sql"));
+    for (Map.Entry<String, Timer> e : new TreeMap<>(statements).entrySet()) {
+      Timer t = e.getValue();
+      sb.append(String.format("%10d %10d %s  %s%n", t.latency.count(), t.errors.sum(), latencies(t.latency),
+              e.getKey()));
+    }
+    if (!gauges.isEmpty()) {
+      sb.append(String.format("%n"));
+      for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+        sb.append(String.format("%-30s %d%n", e.getKey(), e.getValue().value()));
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String latencies(LatencyHistogram h) {
+    return String.format("%10.1f %10.1f %10.1f %10.1f", h.percentile(0.5) / 1e3, h.percentile(0.99) / 1e3,
+            h.percentile(0.999) / 1e3, h.max() / 1e3);
+  }
+
+  private static Timer timer(ConcurrentHashMap<String, Timer> timers, String name) {
+    Timer timer = timers.get(name);
+    if (timer == null) {
+      Timer created = new Timer();
+      timer = timers.putIfAbsent(name, created);
+      if (timer == null) {
+        timer = created;
+      }
+    }
+    return timer;
+  }
+
+  private static final class Timer {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder roundTrips = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    void record(long nanos, long trips) {
+      latency.record(nanos);
+      roundTrips.add(trips);
+    }
+
+    double roundTripsPerCall() {
+      long n = latency.count();
+      return n == 0 ? 0 : (double) roundTrips.sum() / n;
+    }
+  }
+
+  /**
+   * JMX view: for every command, &lt;command&gt;.count, .p50Micros, .p99Micros,
+   * .p999Micros, .maxMicros and .roundTrips, the same for connectionWait, each
+   * gauge, and the full text report as Report
+   */
+  private final class MBean implements DynamicMBean {
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      if (attribute.equals("Report")) {
+        return report();
+      }
+      int dot = attribute.lastIndexOf('.');
+      if (dot > 0) {
+        String name = attribute.substring(0, dot);
+        String field = attribute.substring(dot + 1);
+        Gauge gauge = gauges.get(attribute);
+        if (gauge != null) {
+          return gauge.value();
+        }
+        if (name.equals("connectionWait")) {
+          return field(connectionWait, 0, field, attribute);
+        }
+        Timer t = commands.get(name);
+        if (t != null) {
+          return field(t.latency, t.roundTripsPerCall(), field, attribute);
+        }
+      }
+      throw new AttributeNotFoundException(attribute);
+    }
+
+    private Object field(LatencyHistogram h, double roundTrips, String field, String attribute)
+            throws AttributeNotFoundException {
+      switch (field) {
+        case "count":
+          return h.count();
+        case "p50Micros":
+          return h.percentile(0.5) / 1e3;
+        case "p99Micros":
+          return h.percentile(0.99) / 1e3;
+        case "p999Micros":
+          return h.percentile(0.999) / 1e3;
+        case "maxMicros":
+          return h.max() / 1e3;
+        case "roundTrips":
+          return roundTrips;
+        default:
+          throw new AttributeNotFoundException(attribute);
+      }
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      AttributeList list = new AttributeList();
+      for (String name : attributes) {
+        try {
+          list.add(new Attribute(name, getAttribute(name)));
+        } catch (AttributeNotFoundException e) {
+          // left out, as the DynamicMBean contract allows
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+      throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attributes = new ArrayList<>();
+      attributes.add(new MBeanAttributeInfo("Report", "java.lang.String", "Text report of all metrics", true, false,
+              false));
+      List<String> timed = new ArrayList<>(new TreeSet<>(commands.keySet()));
+      timed.add("connectionWait");
+      for (String name : timed) {
+        attributes.add(new MBeanAttributeInfo(name + ".count", "long", "Calls", true, false, false));
+        for (String field : new String[] { "p50Micros", "p99Micros", "p999Micros", "maxMicros" }) {
+          attributes.add(new MBeanAttributeInfo(name + "." + field, "double", "Latency", true, false, false));
+        }
+        if (!name.equals("connectionWait")) {
+          attributes.add(new MBeanAttributeInfo(name + ".roundTrips", "double", "Database round trips per call",
+                  true, false, false));
+        }
+      }
+      for (String name : gauges.keySet()) {
+        attributes.add(new MBeanAttributeInfo(name, "long", "Gauge", true, false, false));
+      }
+      return new MBeanInfo(Metrics.class.getName(), "Flight service metrics",
+              attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+  }
+}
@@ -0,0 +1,273 @@
+package edu.uw.cs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Salted PBKDF2 password hashes for Users. Each derivation is tens of
+ * milliseconds of CPU, so it runs on hash.threads dedicated threads behind a
+ * queue of hash.queue_size: however many sessions log in at once, hashing
+ * cannot take every core from the threads running transactions, and sessions
+ * are turned away once the queue is full instead of piling up.
+ *
+ * A session whose password was verified, or that just created the user, is
+ * remembered for hash.cache_ttl_ms as an HMAC of the password under a key that
+ * never leaves the process, together with the stored hash it matched. A
+ * repeated login with the same password against the same stored hash is
+ * then checked with one HMAC instead of a derivation.
+ */
+class PasswordHasher {
+  // PBKDF2 parameters: iterations by default and the derived key length in bits
+  private static final int HASH_STRENGTH = 65536;
+  private static final int KEY_LENGTH = 128;
+  private static final int SALT_BYTES = 16;
+
+  private static PasswordHasher instance;
+
+  private final int iterations;
+  private final ThreadPoolExecutor executor;
+  private final SecureRandom random = new SecureRandom();
+  private final byte[] cacheKey = new byte[32];
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final LinkedHashMap<String, Verified> verified;        // access order, guarded by itself
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(cacheKey, "HmacSHA256"));
+        return mac;
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
+  /**
+   * A password known to match a stored hash
+   */
+  private static final class Verified {
+    final byte[] hash;
+    final byte[] digest;
+    final long expiresAt;
+
+    Verified(byte[] hash, byte[] digest, long expiresAt) {
+      this.hash = hash;
+      this.digest = digest;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  PasswordHasher(int iterations, int threads, int queueSize, final int maxEntries, long ttlMillis) {
+    this.iterations = iterations;
+    this.maxEntries = maxEntries;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    random.nextBytes(cacheKey);
+    this.verified = new LinkedHashMap<String, Verified>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+        return size() > maxEntries;
+      }
+    };
+    final AtomicInteger count = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "password-hasher-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              }
+            });
+  }
+
+  /**
+   * Returns the shared hasher, configured by the hash.* settings
+   */
+  static synchronized PasswordHasher getInstance(ConnectionPool pool) {
+    if (instance == null) {
+      Properties config = pool.config();
+      int iterations = Integer.parseInt(config.getProperty("hash.iterations", "" + HASH_STRENGTH).trim());
+      int threads = Integer.parseInt(config.getProperty("hash.threads", "4").trim());
+      int queueSize = Integer.parseInt(config.getProperty("hash.queue_size", "1024").trim());
+      int maxEntries = Integer.parseInt(config.getProperty("hash.cache_max_entries", "10000").trim());
+      long ttlMillis = Long.parseLong(config.getProperty("hash.cache_ttl_ms", "600000").trim());
+      instance = new PasswordHasher(iterations, Math.max(1, threads), queueSize, maxEntries, ttlMillis);
+      instance.registerGauges();
+    }
+    return instance;
+  }
+
+  /**
+   * A new random salt
+   */
+  byte[] salt() {
+    byte[] salt = new byte[SALT_BYTES];
+    random.nextBytes(salt);
+    return salt;
+  }
+
+  /**
+   * Derives the hash of a new user's password on a hashing thread
+   *
+   * @throws SQLException if the hashing queue is full or hashing failed
+   */
+  byte[] hash(String password, byte[] salt) throws SQLException {
+    return derive(password, salt);
+  }
+
+  /**
+   * Derives the hashes of many new users' passwords, keeping at most two per
+   * hashing thread queued at a time so that logins still find room in the
+   * queue
+   *
+   * @throws SQLException if hashing failed
+   */
+  byte[][] hash(String[] passwords, byte[][] salts) throws SQLException {
+    int window = 2 * executor.getMaximumPoolSize();
+    byte[][] hashes = new byte[passwords.length][];
+    List<Future<byte[]>> derived = new ArrayList<>(passwords.length);
+    int done = 0;
+    try {
+      for (int i = 0; i < passwords.length; i++) {
+        while (true) {
+          if (i - done < window) {
+            try {
+              derived.add(submit(passwords[i], salts[i]));
+              break;
+            } catch (RejectedExecutionException e) {
+              if (done == i) {
+                throw new SQLException("Password hashing queue is full", e);
+              }
+            }
+          }
+          hashes[done] = await(derived.get(done));      // make room by waiting for the oldest
+          done++;
+        }
+      }
+      for (; done < passwords.length; done++) {
+        hashes[done] = await(derived.get(done));
+      }
+      return hashes;
+    } finally {
+      for (int i = done; i < derived.size(); i++) {
+        derived.get(i).cancel(true);                    // after a failure
+      }
+    }
+  }
+
+  /**
+   * Whether password matches the user's stored salt and hash, derived on a
+   * hashing thread unless it was recently verified against the same hash
+   *
+   * @throws SQLException if the hashing queue is full or hashing failed
+   */
+  boolean verify(String username, String password, byte[] salt, byte[] hash) throws SQLException {
+    if (maxEntries > 0) {
+      Verified known;
+      synchronized (verified) {
+        known = verified.get(username);
+      }
+      if (known != null && System.nanoTime() - known.expiresAt < 0 && Arrays.equals(known.hash, hash)
+              && MessageDigest.isEqual(known.digest, digest(password, salt))) {
+        hits.incrementAndGet();
+        return true;
+      }
+      misses.incrementAndGet();
+    }
+    if (!MessageDigest.isEqual(derive(password, salt), hash)) {
+      return false;
+    }
+    remember(username, password, salt, hash);
+    return true;
+  }
+
+  /**
+   * Records that password matches the user's stored hash, e.g. once the user
+   * was created with it
+   */
+  void remember(String username, String password, byte[] salt, byte[] hash) {
+    if (maxEntries <= 0) {
+      return;
+    }
+    Verified entry = new Verified(hash, digest(password, salt), System.nanoTime() + ttlNanos);
+    synchronized (verified) {
+      verified.put(username, entry);
+    }
+  }
+
+  private byte[] digest(String password, byte[] salt) {
+    Mac mac = macs.get();
+    mac.update(salt);
+    return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * PBKDF2 of the password, computed on a hashing thread while the caller
+   * waits
+   */
+  private byte[] derive(String password, byte[] salt) throws SQLException {
+    Future<byte[]> derived;
+    try {
+      derived = submit(password, salt);
+    } catch (RejectedExecutionException e) {
+      throw new SQLException("Password hashing queue is full", e);
+    }
+    return await(derived);
+  }
+
+  private Future<byte[]> submit(final String password, final byte[] salt) {
+    return executor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws GeneralSecurityException {
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_LENGTH);
+        return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+      }
+    });
+  }
+
+  private static byte[] await(Future<byte[]> derived) throws SQLException {
+    try {
+      return derived.get();
+    } catch (InterruptedException e) {
+      derived.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while hashing a password", e);
+    } catch (ExecutionException e) {
+      throw new SQLException("Cannot hash password", e.getCause());
+    }
+  }
+
+  private void registerGauges() {
+    Metrics metrics = Metrics.getInstance();
+    metrics.gauge("hash.queued", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return executor.getQueue().size();
+      }
+    });
+    metrics.gauge("hash.cache_hits", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return hits.get();
+      }
+    });
+    metrics.gauge("hash.cache_misses", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return misses.get();
+      }
+    });
+  }
+}
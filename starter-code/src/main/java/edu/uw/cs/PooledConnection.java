@@ -0,0 +1,93 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * A physical database connection owned by a {@link ConnectionPool}, together
+ * with its cache of prepared statements. Only the session that borrowed it
+ * may use it, so none of this needs to be thread-safe. When timed, every
+ * statement execution is recorded in {@link Metrics}.
+ */
+class PooledConnection {
+  private final Connection conn;
+  private final boolean timed;
+  private final Map<String, PreparedStatement> statements;
+
+  // last time this connection was returned to the pool, in nanoseconds
+  long lastUsed;
+
+  PooledConnection(Connection conn, final int statementCacheSize, boolean timed) {
+    this.conn = conn;
+    this.timed = timed;
+    this.lastUsed = System.nanoTime();
+    this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+        if (size() <= statementCacheSize) {
+          return false;
+        }
+        closeQuietly(eldest.getValue());
+        return true;
+      }
+    };
+  }
+
+  /**
+   * The underlying JDBC connection
+   */
+  Connection connection() {
+    return conn;
+  }
+
+  /**
+   * Returns the cached prepared statement for this SQL, preparing it on first
+   * use. Parameters are cleared before the statement is handed out.
+   */
+  PreparedStatement prepare(String sql) throws SQLException {
+    PreparedStatement ps = statements.get(sql);
+    if (ps == null) {
+      ps = conn.prepareStatement(sql);
+      if (timed) {
+        ps = new TimedStatement(ps, sql);                   // the driver's statement when metrics.statements is off
+      }
+      statements.put(sql, ps);
+    } else {
+      ps.clearParameters();
+    }
+    return ps;
+  }
+
+  /**
+   * Counts a commit or rollback as a round trip of the running command, when
+   * timed
+   */
+  void roundTrip() {
+    if (timed) {
+      Metrics.getInstance().roundTrip();
+    }
+  }
+
+  /**
+   * Closes every cached statement and the physical connection
+   */
+  void close() {
+    for (PreparedStatement ps : statements.values()) {
+      closeQuietly(ps);
+    }
+    statements.clear();
+    try {
+      conn.close();
+    } catch (SQLException e) {
+      // already broken, nothing left to release
+    }
+  }
+
+  private static void closeQuietly(Statement s) {
+    try {
+      s.close();
+    } catch (SQLException e) {
+      // the connection is going away anyway
+    }
+  }
+}
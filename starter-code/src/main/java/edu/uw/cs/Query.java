@@ -3,139 +3,186 @@ package edu.uw.cs;
 import java.io.*;
 import java.sql.*;
 import java.util.*;
-import java.security.*;
-import java.security.spec.*;
-import javax.crypto.*;
-import javax.crypto.spec.*;
-import javax.xml.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Runs queries against a back-end database
  */
 public class Query {
-  // DB Connection
-  private Connection conn;
+  // Shared pool of DB connections, borrowed for the duration of each transaction
+  private ConnectionPool pool;
+  // Connections for read-only transactions, at a weaker isolation or to a read replica
+  private ConnectionPool readPool;
 
-  // Password hashing parameter constants
-  private static final int HASH_STRENGTH = 65536;
-  private static final int KEY_LENGTH = 128;
+  // Responses are rendered into one per-session buffer; it is replaced if a large response grew it past this
+  private static final int OUTPUT_CAPACITY = 4096;
+  private static final int MAX_RETAINED_OUTPUT = 64 * 1024;
 
-  //private field to indicate whether users have logged in
-  private String loggedUser;
-  private int rid = 1;
-  private List<Itinerary> iList = new ArrayList<>();
-
-  // Canned queries
-  private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
-  private PreparedStatement checkFlightCapacityStatement;
-
-  private static final String GET_USER = "SELECT * FROM Users where username = ? and password = ?;";
-  private PreparedStatement getUser;
+  // Longest username Users can hold
+  private static final int MAX_USERNAME_LENGTH = 20;
 
-  private static final String SEARCH_DIRECT = "SELECT TOP (?) * FROM Flights "
-          + "WHERE day_of_month = ? AND origin_city = ? AND dest_city =  ? "
-          + "AND canceled <> 1 ORDER BY actual_time ASC, fid ASC;";
-  private PreparedStatement searchDirect;
+  // Retry policy for transactions that hit a deadlock or serialization failure
+  private static final int MAX_TRANSACTION_ATTEMPTS = 5;
+  private static final long RETRY_BACKOFF_MILLIS = 10;
 
-  private static final String SEARCH_INDIRECT = "select top(?) * from FLIGHTS F1, FLIGHTS F2 " +
-          "where F1.day_of_month = ? AND F2.day_of_month = ? AND F1.origin_city = ? AND F1.dest_city = F2.origin_city "
-          + "AND F2.dest_city = ? AND F1.canceled != 1 AND F2.canceled != 1 ORDER BY (F1.actual_time+F2.actual_time), F1.fid ASC;";
-  private PreparedStatement searchIndirect;
+  // Most values bound into one IN list, well under SQL Server's 2100 parameters;
+  // a power of two, see inListSize
+  private static final int IN_LIST_LIMIT = 512;
 
-  private static final String SEARCH_RESERVATION = "SELECT * FROM Reservation WHERE username = ? ORDER BY rid ASC";
-  private PreparedStatement searchReservation;
+  //private field to indicate whether users have logged in
+  private String loggedUser;
+  private ReservationIdAllocator ridAllocator;                  // shared by all sessions
+  private SeatInventory seats;                                  // null unless seats.inventory = memory
+  private String debitBalance;                                  // depends on the backend's SQL dialect
+  private StringBuilder out = new StringBuilder(OUTPUT_CAPACITY); // reused for every response of this session
+  private ItineraryStore itineraries;                           // the latest search, what book refers to
+  private EventLog events;                                      // null unless events.log_dir is set
+  private PasswordHasher hasher;                                // shared by all sessions
+  private long replicaLagNanos;                                 // reads stay on the primary this long after a write
+  private long lastWrite;                                       // System.nanoTime() of this session's latest write
+  private int createBatchSize;                                  // users inserted per JDBC batch by createCustomers
 
-  private static final String GET_CAPACITIES = "SELECT capacity FROM CAPACITIES WHERE fid = ?;";
-  private PreparedStatement getCapacities;
+  // Canned queries
+  // A user's salted hash, or for a user created before passwords were hashed (hash is NULL) whether the
+  // plaintext password matches, compared by the database as it always was
+  private static final String GET_USER = "SELECT salt, hash, CASE WHEN password = ? THEN 1 ELSE 0 END "
+          + "FROM Users WHERE username = ?;";
 
-  private static final String FIND_BALANCE = "select balance from users where username = ?;";
-  private PreparedStatement findBalance;
+  // Every reservation of a user in one round trip, one row per leg after the second; flight details come from
+  // the flight cache
+  private static final String SEARCH_RESERVATION = "SELECT R.rid, R.paid, R.fid1, R.fid2, L.fid FROM Reservation R "
+          + "LEFT JOIN ReservationLegs L ON L.rid = R.rid WHERE R.username = ? ORDER BY R.rid ASC, L.leg ASC;";
 
-  private static final String GET_PAID_STATUS = "select * from reservation where rid = ?;";
-  private PreparedStatement getReservationByRid;
+  // The user's live reservations among the given rids, one row per leg after the second; completed with an IN
+  // list of rids
+  private static final String FIND_CANCELABLE = "SELECT R.rid, R.fid1, R.fid2, R.paid, R.cost, L.fid "
+          + "FROM Reservation R LEFT JOIN ReservationLegs L ON L.rid = R.rid "
+          + "WHERE R.username = ? AND R.canceled = 0 AND R.rid IN ";
 
-  private static final String GET_FLIGHT = "select * from flights where fid = ?;";
-  private PreparedStatement getFlight;
 
 
 
   //   All update operation   *********************************************************************************
   private static final String CLEAR_USER_TABLE = "DELETE FROM Users;";
-  private PreparedStatement clearTableUsers;
 
   private static final String CLEAR_RESERVATION_TABLE = "DELETE FROM Reservation;";
-  private PreparedStatement clearTableReservations;
 
-  private static final String CLEAR_CAPACITY_TABLE = "DELETE FROM Capacities;";
-  private PreparedStatement clearTableCapacities;
+  private static final String CLEAR_LEGS_TABLE = "DELETE FROM ReservationLegs;";
+
+  // Every flight that was ever booked is back to its full Flights capacity; run before reservations are deleted
+  private static final String RESET_CAPACITIES = "UPDATE Capacities SET capacity = "
+          + "(SELECT F.capacity FROM Flights F WHERE F.fid = Capacities.fid) WHERE fid IN "
+          + "(SELECT fid1 FROM Reservation UNION SELECT fid2 FROM Reservation UNION SELECT fid FROM ReservationLegs);";
 
-  private static final String CREATE_USER = "INSERT INTO Users VALUES(?, ?, ?)";
-  private PreparedStatement createCustomer;
+  // Inserts the user unless the username is taken
+  private static final String CREATE_USER = "INSERT INTO Users (username, salt, hash, balance) "
+          + "SELECT ?, ?, ?, ? WHERE NOT EXISTS (SELECT * FROM Users WHERE username = ?);";
 
-  private  static final String UPDATE_CAPACITY = "UPDATE Capacities set capacity = ((select capacity from capacities where fid = ?) - 1) where fid = ?;";
-  private PreparedStatement updateCapacity;
+  // Takes one seat on each of the (up to two) flights that still has a free seat; completed with an IN list of
+  // fids. Every flight has a Capacities row, seeded when Flights was loaded.
+  private static final String RESERVE_SEATS = "UPDATE Capacities SET capacity = capacity - 1 "
+          + "WHERE capacity > 0 AND fid IN ";
 
-  private static final String INSERT_CAPACITY = "INSERT INTO CAPACITIES "
-          + "SELECT F.fid, F.capacity "
-          + "FROM Flights F "
-          + "WHERE f.fid = ? "
-          + "AND NOT EXISTS "
-          + "(SELECT * FROM CAPACITIES c WHERE c.fid = f.fid);";
-  private PreparedStatement insertCapacity;
+  // Inserts the reservation unless the user already holds a live reservation on the same day
+  private static final String INSERT_RESERVATION = "INSERT INTO Reservation (rid, fid1, fid2, paid, username, cost, canceled) "
+          + "SELECT ?, ?, ?, 0, ?, ?, 0 WHERE NOT EXISTS "
+          + "(SELECT * FROM Reservation R, Flights F WHERE R.username = ? AND R.canceled = 0 "
+          + "AND R.fid1 = F.fid AND F.day_of_month = ?);";
 
-  private static final String UPDATE_RESERVATION = "INSERT INTO RESERVATION (rid, fid1, fid2, paid, username, cost, canceled) " +
-          "VALUES(?, ?, ?, ?, ?, ?, ?);";
-  private PreparedStatement updateReservation;
+  // Legs after the second of an itinerary with stops; the first two are Reservation.fid1 and fid2
+  private static final String INSERT_LEG = "INSERT INTO ReservationLegs (rid, leg, fid) VALUES (?, ?, ?);";
 
-  private static final String UPDATE_BALANCE = "UPDATE USERS set balance = ? where username = ?;";
-  private PreparedStatement updateBalance;
+  // Replaces a plaintext password with its salted hash once the user has logged in with it
+  private static final String UPGRADE_PASSWORD = "UPDATE Users SET salt = ?, hash = ?, password = NULL "
+          + "WHERE username = ? AND hash IS NULL;";
 
-  private static final String SET_PAID_STATUS = "UPDATE RESERVATION SET paid = ? WHERE rid = ?;";
-  private PreparedStatement setPaidStatus;
+  private static final String REFUND = "UPDATE Users SET balance = balance + ? WHERE username = ?;";
+
+  // Marks the reservation paid if it is the user's, unpaid, not canceled and the user can afford it
+  private static final String PAY_RESERVATION = "UPDATE Reservation SET paid = 1 WHERE rid = ? AND username = ? "
+          + "AND paid = 0 AND canceled = 0 AND cost <= (SELECT balance FROM Users WHERE username = ?);";
+
+  // Why a payment was refused: no row if there is no such unpaid reservation, else its cost and the balance
+  private static final String PAYMENT_SHORTFALL = "SELECT R.cost, U.balance FROM Reservation R, Users U "
+          + "WHERE R.rid = ? AND R.username = ? AND R.paid = 0 AND R.canceled = 0 AND U.username = R.username;";
 
   private static final String DELETE_RESERVATION = "DELETE FROM reservation where rid = ?;";
-  private PreparedStatement deleteReservation;
 
-  private static final String ADD = "UPDATE Capacities SET capacity = ? WHERE fid = ?";
-  private PreparedStatement addCapacity;
+  // Completed with an IN list of rids
+  private static final String CANCEL = "UPDATE Reservation SET paid = 0, canceled = 1 "
+          + "WHERE username = ? AND canceled = 0 AND rid IN ";
 
-  // Update paid and canceled
-  private static final String CANCEL = "UPDATE Reservation SET paid = ?, canceled = ? WHERE rid = ?";
-  private PreparedStatement cancelReservation;
+  // Gives back one seat on each flight; completed with an IN list of fids
+  private static final String RESTORE_SEATS = "UPDATE Capacities SET capacity = capacity + 1 WHERE fid IN ";
 
 
 
   /**
-   * Establishes a new application-to-database connection. Uses the
-   * dbconn.properties configuration settings
+   * Attaches this session to the shared application-to-database connection
+   * pool. Uses the dbconn.properties configuration settings
    *
    * @throws IOException
    * @throws SQLException
    */
   public void openConnection() throws IOException, SQLException {
-    // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
-    String serverURL = configProps.getProperty("hw1.server_url");
-    String dbName = configProps.getProperty("hw1.database_name");
-    String adminName = configProps.getProperty("hw1.username");
-    String password = configProps.getProperty("hw1.password");
-    String connectionUrl = String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s", serverURL,
-            dbName, adminName, password);
-    conn = DriverManager.getConnection(connectionUrl);
-
-    // By default, automatically commit after each statement
-    conn.setAutoCommit(true);
-
-    // By default, set the transaction isolation level to serializable
-    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    attach(ConnectionPool.getInstance());
+  }
+
+  /**
+   * Attaches this session to the shared connection pool, creating the pool
+   * from the given settings instead of dbconn.properties if it does not exist
+   * yet
+   *
+   * @param configProps the same keys as dbconn.properties
+   * @throws SQLException
+   */
+  public void openConnection(Properties configProps) throws SQLException {
+    attach(ConnectionPool.getInstance(configProps));
+  }
+
+  private void attach(ConnectionPool pool) throws SQLException {
+    this.pool = pool;
+    readPool = pool.reads();
+    replicaLagNanos = TimeUnit.MILLISECONDS.toNanos(
+            Long.parseLong(pool.config().getProperty("storage.read_replica_lag_ms", "5000").trim()));
+    lastWrite = System.nanoTime() - replicaLagNanos;
+    ridAllocator = ReservationIdAllocator.getInstance(pool);
+    FlightCache.warmUp(pool);
+    seats = SeatInventory.getInstance(pool);
+    itineraries = ItineraryStore.fromConfig(pool.config());
+    events = EventLog.getInstance(pool);
+    hasher = PasswordHasher.getInstance(pool);
+    debitBalance = debitBalance(pool.backend());
+    createBatchSize = Math.max(1, Integer.parseInt(pool.config().getProperty("users.create_batch_size", "500").trim()));
+  }
+
+  /**
+   * Takes the reservation's cost off the user's balance, if it covers it, and
+   * returns the new balance
+   */
+  static String debitBalance(StorageBackend backend) {
+    return backend.updateReturning("Users", "balance = balance - (SELECT cost FROM Reservation WHERE rid = ?)",
+            "username = ? AND balance >= (SELECT cost FROM Reservation WHERE rid = ?)", "balance");
+  }
+
+  /**
+   * The pool for a read-only transaction. A session that wrote within
+   * storage.read_replica_lag_ms reads from the primary, so it sees its own
+   * writes even if the replica has not caught up yet.
+   */
+  private ConnectionPool readPool() {
+    if (readPool.isReplica() && System.nanoTime() - lastWrite < replicaLagNanos) {
+      return pool;
+    }
+    return readPool;
   }
 
   /**
-   * Closes the application-to-database connection
+   * Detaches this session from the connection pool. The pooled connections
+   * stay open for other sessions.
    */
   public void closeConnection() throws SQLException {
-    conn.close();
+    pool = null;
   }
 
   /**
@@ -144,45 +191,65 @@ public class Query {
    * WARNING! Do not drop any tables and do not clear the flights table.
    */
   public void clearTables() {
+    PooledConnection pc = null;
     try {
-      clearTableReservations.executeUpdate();
-      clearTableUsers.executeUpdate();
-      clearTableCapacities.executeUpdate();
+      pc = pool.borrow();
+      final PreparedStatement resetCapacities = pc.prepare(RESET_CAPACITIES);
+      final PreparedStatement clearLegs = pc.prepare(CLEAR_LEGS_TABLE);
+      final PreparedStatement clearReservations = pc.prepare(CLEAR_RESERVATION_TABLE);
+      final PreparedStatement clearUsers = pc.prepare(CLEAR_USER_TABLE);
+      // one transaction, so the clear is stamped in order with the bookings around it
+      long stamp = inTransaction(pc, new TransactionBody<Long>() {
+        @Override
+        public Long run(Connection conn) throws SQLException {
+          resetCapacities.executeUpdate();
+          clearLegs.executeUpdate();
+          clearReservations.executeUpdate();
+          clearUsers.executeUpdate();
+          ridAllocator.reset(conn);                      // reservation IDs start from 1 again
+          long stamp = stamp();
+          conn.commit();
+          return stamp;
+        }
+      });
+      lastWrite = System.nanoTime();
+      if (seats != null) {
+        seats.reset();                                   // every flight is back to full capacity
+      }
+      if (events != null) {
+        events.cleared(stamp);
+      }
 
     } catch (Exception e) {
       e.printStackTrace();
+    } finally {
+      pool.release(pc);
     }
   }
 
   /*
-   * prepare all the SQL statements in this method.
+   * prepare all the SQL statements in this method. Statements are cached per
+   * pooled connection, so this only warms the cache of one connection.
    */
   public void prepareStatements() throws SQLException {
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-
-    clearTableUsers = conn.prepareStatement(CLEAR_USER_TABLE);
-    clearTableReservations = conn.prepareStatement(CLEAR_RESERVATION_TABLE);
-    clearTableCapacities = conn.prepareStatement(CLEAR_CAPACITY_TABLE);
-    getUser = conn.prepareStatement(GET_USER);
-    createCustomer = conn.prepareStatement(CREATE_USER);
-    searchDirect = conn.prepareStatement(SEARCH_DIRECT);
-    searchIndirect = conn.prepareStatement(SEARCH_INDIRECT);
-    searchReservation = conn.prepareStatement(SEARCH_RESERVATION);
-    insertCapacity = conn.prepareStatement(INSERT_CAPACITY);
-    getCapacities = conn.prepareStatement(GET_CAPACITIES);
-    updateCapacity = conn.prepareStatement(UPDATE_CAPACITY);
-    updateReservation = conn.prepareStatement(UPDATE_RESERVATION);
-    //countReservation = conn.prepareStatement(COUNT_RESERVATION);
-    findBalance = conn.prepareStatement(FIND_BALANCE);
-    getReservationByRid = conn.prepareStatement(GET_PAID_STATUS);
-    updateBalance = conn.prepareStatement(UPDATE_BALANCE);
-    setPaidStatus = conn.prepareStatement(SET_PAID_STATUS);
-    getFlight = conn.prepareStatement(GET_FLIGHT);
-    //deleteReservation = conn.prepareStatement(DELETE_RESERVATION);
-
-    cancelReservation = conn.prepareStatement(CANCEL);
-    addCapacity = conn.prepareStatement(ADD);
-
+    PooledConnection pc = pool.borrow();
+    try {
+      pc.prepare(CLEAR_USER_TABLE);
+      pc.prepare(CLEAR_RESERVATION_TABLE);
+      pc.prepare(CLEAR_LEGS_TABLE);
+      pc.prepare(RESET_CAPACITIES);
+      pc.prepare(GET_USER);
+      pc.prepare(CREATE_USER);
+      pc.prepare(SEARCH_RESERVATION);
+      pc.prepare(RESERVE_SEATS + inList(2));
+      pc.prepare(INSERT_RESERVATION);
+      pc.prepare(REFUND);
+      pc.prepare(PAY_RESERVATION);
+      pc.prepare(PAYMENT_SHORTFALL);
+      pc.prepare(debitBalance);
+    } finally {
+      pool.release(pc);
+    }
   }
 
   /**
@@ -200,23 +267,70 @@ public class Query {
     if (this.loggedUser != null){
       return "User already logged in\n";
     }
+    ConnectionPool reads = readPool();
+    PooledConnection pc = null;
     try{
+      pc = reads.borrow();
+      PreparedStatement getUser = pc.prepare(GET_USER);
       getUser.clearParameters();
-      getUser.setString(1, username);
-      getUser.setString(2, password);
+      getUser.setString(1, password);
+      getUser.setString(2, username);
       ResultSet user = getUser.executeQuery();
       if (user.next()){
-        this.loggedUser = username;
+        byte[] salt = user.getBytes(1);
+        byte[] hash = user.getBytes(2);
+        boolean plaintextMatches = user.getInt(3) == 1;
         user.close();
-        return "Logged in as " + loggedUser + "\n";
+        reads.release(pc);                                    // no connection is held while hashing
+        pc = null;
+        if (hash == null){                                    // created before passwords were hashed
+          if (!plaintextMatches){
+            return "Login failed\n";
+          }
+          upgradePassword(username, password);
+          this.loggedUser = username;
+          return "Logged in as " + loggedUser + "\n";
+        }
+        if (hasher.verify(username, password, salt, hash)){
+          this.loggedUser = username;
+          return "Logged in as " + loggedUser + "\n";
+        }
+        return "Login failed\n";
       }
       user.close();
     }catch (SQLException e){
       e.printStackTrace();
+    } finally {
+      reads.release(pc);
     }
     return "Login failed\n";
   }
 
+  /**
+   * Stores the salted hash of a user's plaintext password in its place. A
+   * failure leaves the plaintext for the next login to try again.
+   */
+  private void upgradePassword(String username, String password) {
+    PooledConnection pc = null;
+    try{
+      byte[] salt = hasher.salt();
+      byte[] hash = hasher.hash(password, salt);
+      pc = pool.borrow();
+      PreparedStatement upgrade = pc.prepare(UPGRADE_PASSWORD);
+      upgrade.setBytes(1, salt);
+      upgrade.setBytes(2, hash);
+      upgrade.setString(3, username);
+      if (upgrade.executeUpdate() > 0){                         // else another session upgraded it first
+        lastWrite = System.nanoTime();
+        hasher.remember(username, password, salt, hash);
+      }
+    } catch (SQLException e){
+      e.printStackTrace();
+    } finally {
+      pool.release(pc);
+    }
+  }
+
   /**
    * Implement the create user function.
    *
@@ -229,33 +343,145 @@ public class Query {
    *         if failed.
    */
   public String transaction_createCustomer(String username, String password, int initAmount){
-
-    //PreparedStatement createCustomer = conn.prepareStatement("insert into Users values(?, ?, ?)");
+    if (initAmount < 0){
+      return "Failed to create user\n";
+    }
+    PooledConnection pc = null;
     try{
-      if (initAmount >= 0){
-        getUser.clearParameters();
-        getUser.setString(1, username);
-        getUser.setString(2, password);
-        ResultSet result = getUser.executeQuery();
-        if (result.next()){
-          result.close();
-          return "Failed to create user, user alreay exists\n";
+      byte[] salt = hasher.salt();
+      byte[] hash = hasher.hash(password, salt);                // on a hashing thread, before borrowing
+      pc = pool.borrow();
+      final PreparedStatement createCustomer = pc.prepare(CREATE_USER);
+      createCustomer.setString(1, username);
+      createCustomer.setBytes(2, salt);
+      createCustomer.setBytes(3, hash);
+      createCustomer.setInt(4, initAmount);
+      createCustomer.setString(5, username);
+      final long[] stamp = new long[1];
+      int created = inTransaction(pc, new TransactionBody<Integer>() {
+        @Override
+        public Integer run(Connection conn) throws SQLException {
+          if (createCustomer.executeUpdate() == 0){
+            conn.rollback();
+            return 0;
+          }
+          stamp[0] = stamp();
+          conn.commit();
+          return 1;
         }
-        createCustomer.clearParameters();
-        createCustomer.setString(1, username);
-        createCustomer.setString(2, password);
-        createCustomer.setInt(3, initAmount);
-
-        createCustomer.executeUpdate();
-        return "Created user " + username + "\n";
+      });
+      if (created == 0){
+        return "Failed to create user, user alreay exists\n";
+      }
+      lastWrite = System.nanoTime();
+      hasher.remember(username, password, salt, hash);          // so the first login skips hashing
+      if (events != null){
+        events.created(stamp[0], username, initAmount);
       }
+      return "Created user " + username + "\n";
     } catch (SQLException e){
       e.printStackTrace();
+    } finally {
+      pool.release(pc);
     }
 
     return "Failed to create user\n";
   }
 
+  /**
+   * Creates many users at once, e.g. a partner's customer base. Passwords are
+   * hashed on the hashing threads and the users inserted users.create_batch_size
+   * at a time, each batch one JDBC batch and one transaction. A taken username
+   * fails its own row only, as does any row after the first with the same
+   * username.
+   *
+   * @return one response per user, in order: "Created user {@code username}\n",
+   *         "Failed to create user, user alreay exists\n", or "Failed to create
+   *         user\n" for an invalid row or a batch that could not be inserted
+   */
+  public String[] transaction_createCustomers(String[] usernames, String[] passwords, int[] initAmounts){
+    String[] responses = new String[usernames.length];
+    int[] valid = new int[usernames.length];                      // rows to insert, by index
+    int count = 0;
+    for (int i = 0; i < usernames.length; i++) {
+      if (usernames[i] == null || usernames[i].isEmpty() || usernames[i].length() > MAX_USERNAME_LENGTH
+              || passwords[i] == null || initAmounts[i] < 0){
+        responses[i] = "Failed to create user\n";
+      } else {
+        valid[count++] = i;
+      }
+    }
+    for (int start = 0; start < count; start += createBatchSize) {
+      int[] rows = Arrays.copyOfRange(valid, start, Math.min(count, start + createBatchSize));
+      try{
+        createBatch(rows, usernames, passwords, initAmounts, responses);
+      } catch (SQLException e){
+        e.printStackTrace();
+        for (int i : rows) {
+          responses[i] = "Failed to create user\n";
+        }
+      }
+    }
+    return responses;
+  }
+
+  /**
+   * Inserts the given rows in one transaction and fills in their responses
+   */
+  private void createBatch(int[] rows, String[] usernames, String[] passwords, int[] initAmounts,
+                           String[] responses) throws SQLException {
+    final String[] names = new String[rows.length];
+    final String[] batchPasswords = new String[rows.length];
+    final int[] amounts = new int[rows.length];
+    final byte[][] salts = new byte[rows.length][];
+    for (int j = 0; j < rows.length; j++) {
+      names[j] = usernames[rows[j]];
+      batchPasswords[j] = passwords[rows[j]];
+      amounts[j] = initAmounts[rows[j]];
+      salts[j] = hasher.salt();
+    }
+    final byte[][] hashes = hasher.hash(batchPasswords, salts);  // on the hashing threads, before borrowing
+
+    PooledConnection pc = pool.borrow();
+    int[] inserted;
+    final long[] stamp = new long[1];
+    try{
+      final PreparedStatement createCustomer = pc.prepare(CREATE_USER);
+      inserted = inTransaction(pc, new TransactionBody<int[]>() {
+        @Override
+        public int[] run(Connection conn) throws SQLException {
+          createCustomer.clearBatch();                          // left over from an attempt that failed
+          for (int j = 0; j < names.length; j++) {
+            createCustomer.setString(1, names[j]);
+            createCustomer.setBytes(2, salts[j]);
+            createCustomer.setBytes(3, hashes[j]);
+            createCustomer.setInt(4, amounts[j]);
+            createCustomer.setString(5, names[j]);
+            createCustomer.addBatch();
+          }
+          int[] counts = createCustomer.executeBatch();           // 0 where the username was taken
+          stamp[0] = stamp();
+          conn.commit();
+          return counts;
+        }
+      });
+    } finally {
+      pool.release(pc);
+    }
+
+    lastWrite = System.nanoTime();
+    for (int j = 0; j < rows.length; j++) {
+      if (inserted[j] == 0){
+        responses[rows[j]] = "Failed to create user, user alreay exists\n";
+      } else {
+        responses[rows[j]] = "Created user " + names[j] + "\n";
+        if (events != null){
+          events.created(stamp[0], names[j], amounts[j]);
+        }
+      }
+    }
+  }
+
   /**
    * Implement the search function.
    *
@@ -272,10 +498,13 @@ public class Query {
    * @param directFlight        if true, then only search for direct flights,
    *                            otherwise include indirect flights as well
    * @param dayOfMonth
-   * @param numberOfItineraries number of itineraries to return
+   * @param numberOfItineraries number of itineraries to return, at most
+   *                            session.max_itineraries
    *
    * @return If no itineraries were found, return "No flights match your
    *         selection\n". If an error occurs, then return "Failed to search\n".
+   *         Indirect itineraries have one stop; see the overload with maxHops
+   *         for more.
    *
    *         Otherwise, the sorted itineraries printed in the following format:
    *
@@ -291,114 +520,53 @@ public class Query {
    */
   public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
                                    int numberOfItineraries){
-    StringBuffer sb = new StringBuffer();
+    return transaction_search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, 2);
+  }
+
+  /**
+   * Implements the search function with itineraries of up to maxHops flights
+   * (at most search.max_hops). Direct flights come first, then itineraries
+   * with stops by total duration; no itinerary visits a city twice and all of
+   * its flights are on the same day.
+   *
+   * @param maxHops most flights in an itinerary; ignored if directFlight
+   *
+   * @return the same as the search above
+   */
+  public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                                   int numberOfItineraries, int maxHops){
+    StringBuilder sb = output();
+    itineraries.clear();                                                // book refers to this search only
     try{
-      //iList = new LinkedList<>();
-      // one hop itineraries
-      searchDirect.clearParameters();
-      searchDirect.setInt(1, numberOfItineraries);         //limit num of results within numberOfItineraries
-      searchDirect.setInt(2, dayOfMonth);
-      searchDirect.setString(3, originCity);
-      searchDirect.setString(4, destinationCity);
-
-      ResultSet directFlights = searchDirect.executeQuery();
-      //int num = numberOfItineraries;
+      // sorted itineraries, shared with every session that ran the same search
+      Flight[][] found = SearchCache.getInstance(pool).itineraries(originCity, destinationCity, dayOfMonth,
+              directFlight ? 1 : maxHops, numberOfItineraries);
       int count = 0;
-      while (directFlights.next()) {                     // find all the direct flights (less than numberOfItineraries)
-
-        int result_dayOfMonth = directFlights.getInt("day_of_month");
-        String result_carrierId = directFlights.getString("carrier_id");
-        String result_flightNum = directFlights.getString("flight_num");
-        String result_originCity = directFlights.getString("origin_city");
-        String result_destCity = directFlights.getString("dest_city");
-        int result_time = directFlights.getInt("actual_time");
-        int result_capacity = directFlights.getInt("capacity");
-        int result_price = directFlights.getInt("price");
-        int flight_id = directFlights.getInt("fid");
-
-        Itinerary singleFlight = new Itinerary();                               // Add current itinerary to the list
-        singleFlight.fid1 = flight_id;
-        singleFlight.cost = result_price;
-        singleFlight.day = result_dayOfMonth;
-        singleFlight.fid2 = 0;
-        iList.add(singleFlight);
-
-        sb.append("Itinerary " + count + ": 1 flight(s), " + result_time + " minutes\n");
-        sb.append("ID: " + flight_id + " Day: " + result_dayOfMonth + " Carrier: " + result_carrierId + " Number: " +
-                result_flightNum + " Origin: " + result_originCity + " Dest: " + result_destCity + " Duration: " + result_time
-                + " Capacity: " + result_capacity + " Price: " + result_price + "\n");
-        //num--;
-        count++;
-      }
-      directFlights.close();
+      for (Flight[] flights : found) {
+        int time = 0;
+        for (Flight f : flights) {
+          time += f.time;
+        }
+        if (!itineraries.add(flights)){
+          break;                                                        // past session.max_itineraries, not bookable
+        }
 
-      if (directFlight){                                      //If is direct, then return
-        return sb.toString();
-      }
-      else {
-        if (count == numberOfItineraries){                   //if not direct but more direct flight than numberOfItineraries
-          return sb.toString();                              // output
-        }else {
-          searchIndirect.clearParameters();
-          searchIndirect.setInt(1, numberOfItineraries - count);
-          searchIndirect.setInt(2, dayOfMonth);
-          searchIndirect.setInt(3, dayOfMonth);
-          searchIndirect.setString(4, originCity);
-          searchIndirect.setString(5, destinationCity);
-          ResultSet indirectFlights = searchIndirect.executeQuery();
-
-          while (indirectFlights.next()){                     //else, search for indirect flights
-            int time1 = indirectFlights.getInt(15);
-            int time2 = indirectFlights.getInt(33);
-            int time = time1 + time2;
-
-            int fid1 = indirectFlights.getInt(1);
-            int fid2 = indirectFlights.getInt(19);
-
-            int dayId = indirectFlights.getInt(3);
-
-            String carrier1 = indirectFlights.getString(5);
-            String carrier2 = indirectFlights.getString(23);
-
-            int flightNum1 = indirectFlights.getInt(6);
-            int flightNum2 = indirectFlights.getInt(24);
-
-            String origin1 = indirectFlights.getString(7);
-            String origin2 = indirectFlights.getString(25);
-
-            String dest1 = indirectFlights.getString(9);
-            String dest2 = indirectFlights.getString(27);
-
-            int capa1 = indirectFlights.getInt(17);
-            int capa2 = indirectFlights.getInt(35);
-
-            int price1 = indirectFlights.getInt(18);
-            int price2 = indirectFlights.getInt(36);
-
-            Itinerary twoFlight = new Itinerary();                          // Add current itinerary to the list
-            twoFlight.fid1 = fid1;
-            twoFlight.fid2 = fid2;
-            twoFlight.cost = price1 + price2;
-            twoFlight.day = dayId;
-            iList.add(twoFlight);
-
-            sb.append("Itinerary " + count + ": 2 flight(s), " + time + "minutes\n");
-            sb.append("ID: " + fid1 + "Day: " + dayId + " Carrier: " + carrier1 + " Number: " +
-                    flightNum1 + " Origin: " + origin1 + " Dest: " + dest1 + " Duration: " + time1
-                    + " Capacity: " + capa1 + " Price: " + price1 + "\n");
-            sb.append("ID: " + fid2 + "Day: " + dayId + " Carrier: " + carrier2 + " Number: " +
-                    flightNum2 + " Origin: " + origin2 + " Dest: " + dest2 + " Duration: " + time2
-                    + " Capacity: " + capa2 + " Price: " + price2 + "\n");
-            count++;
-          }
+        sb.append("Itinerary ").append(count).append(": ").append(flights.length).append(" flight(s), ").append(time)
+                .append(" minutes\n");
+        for (Flight f : flights) {
+          f.appendTo(sb).append('\n');
         }
-        return sb.toString();
+        count++;
+      }
 
+      if (count == 0){
+        return "No flights match your selection\n";
       }
+      return sb.toString();
     } catch (SQLException e){
       e.printStackTrace();
     }
-    return "search failed\n";
+    return "Failed to search\n";
   }
 
   /**
@@ -426,94 +594,97 @@ public class Query {
       return "Cannot book reservations, not logged in\n";
     }
 
-    if (itineraryId < 0 || itineraryId >= iList.size() || iList.size() < 1){
+    if (!itineraries.contains(itineraryId)){
       return "No such itinerary " + itineraryId + "\n";
     }
 
-    Itinerary temp = iList.get(itineraryId);             // temp is the Itinerary that user want to book
-    int fidWant1 = temp.fid1;
-    int fidWant2 = temp.fid2;
-    int cost = temp.cost;
+    final int[] fids = itineraries.fids(itineraryId);
+    final int fidWant1 = fids[0];
+    final int fidWant2 = fids.length > 1 ? fids[1] : 0;         // 0 for a direct itinerary
+    final int cost = itineraries.cost(itineraryId);
+    final int day = itineraries.day(itineraryId);
+    boolean seatsTaken = false;
+    int unused = 0;                                             // allocated rid to give back if nothing is booked
+    PooledConnection pc = null;
     try{
-      searchReservation.clearParameters();
-      searchReservation.setString(1, this.loggedUser);
-      ResultSet reservationResult = searchReservation.executeQuery();
-      while (reservationResult.next()){                    // check if itinerary is already in the reservation
-        int fid1 = reservationResult.getInt("fid1");
-        int fid2 = reservationResult.getInt("fid2");
-        if (fidWant1 == fid1 || fidWant1 == fid2 || fidWant2 == fid1 || fidWant2 == fid2){
-          reservationResult.close();
-          return "You cannot book two flights in the same day\n";
-        }
-      }
-
-      //firstly need to check Capacity
-      //CAPACITIES table needs to be on hold
-      //check curr_capacity
-      //if curr_capacity < max_capacity
-      //set curr_capacity to curr_capacity + 1
-      insertCapacity.clearParameters();
-      insertCapacity.setInt(1, fidWant1);
-      insertCapacity.executeUpdate();
-
-      getCapacities.clearParameters();
-      getCapacities.setInt(1, fidWant1);
-      ResultSet getCap1 = getCapacities.executeQuery();
-      getCap1.next();
-      int cap1 = getCap1.getInt("capacity");
-      getCap1.close();
-
-      if (cap1 == 0){
-        return "Booking failed!\n";
-      }
-
-      if (fidWant2 != 0){                       //check if there is space in the second flight if there is a second flight
-        insertCapacity.clearParameters();
-        insertCapacity.setInt(1, fidWant2);
-        insertCapacity.executeUpdate();
-
-        getCapacities.clearParameters();
-        getCapacities.setInt(1, fidWant1);
-        ResultSet getCap2 = getCapacities.executeQuery();
-        getCap2.next();
-        int cap2 = getCap1.getInt("capacity");
-        getCap2.close();
-
-        if (cap2 == 0){
+      if (seats != null){                                       // admitted in memory, Capacities is written behind
+        if (!seats.reserve(fids)){
           return "Booking failed!\n";
         }
+        seatsTaken = true;
       }
+      final int rid = ridAllocator.next();                      // once, so retried attempts reuse it
+      unused = rid;
+      pc = pool.borrow();
+      final PreparedStatement insertReservation = pc.prepare(INSERT_RESERVATION);
+      final PreparedStatement reserveSeats = pc.prepare(RESERVE_SEATS + inList(fids.length));
+      final PreparedStatement insertLeg = fids.length > 2 ? pc.prepare(INSERT_LEG) : null;
+      final long[] stamp = new long[1];
+      // the new reservation ID, 0 if a flight is full, -1 if the user already flies that day
+      int booked = inTransaction(pc, new TransactionBody<Integer>() {
+        @Override
+        public Integer run(Connection conn) throws SQLException {
+          if (seats == null){
+            for (int i = 0; i < fids.length; i++) {             // take a seat on every flight or on none
+              reserveSeats.setInt(i + 1, fids[i]);
+            }
+            if (reserveSeats.executeUpdate() != fids.length){
+              conn.rollback();
+              return 0;
+            }
+          }
 
-      updateCapacity.clearParameters();             //update capacities of flights
-      updateCapacity.setInt(1, fidWant1);
-      updateCapacity.setInt(2, fidWant1);
-      updateCapacity.executeUpdate();
-
-      if (fidWant2 != 0){
-        updateCapacity.clearParameters();
-        updateCapacity.setInt(1, fidWant2);
-        updateCapacity.setInt(2, fidWant2);
-        updateCapacity.executeUpdate();
-      }
+          insertReservation.setInt(1, rid);                      // insert reservation unless one exists that day
+          insertReservation.setInt(2, fidWant1);
+          insertReservation.setInt(3, fidWant2);                 // if fid2 not exists, then fid2 is 0
+          insertReservation.setString(4, loggedUser);
+          insertReservation.setInt(5, cost);
+          insertReservation.setString(6, loggedUser);
+          insertReservation.setInt(7, day);
+          if (insertReservation.executeUpdate() == 0){
+            conn.rollback();
+            return -1;
+          }
+          if (insertLeg != null){
+            for (int leg = 3; leg <= fids.length; leg++) {
+              insertLeg.setInt(1, rid);
+              insertLeg.setInt(2, leg);
+              insertLeg.setInt(3, fids[leg - 1]);
+              insertLeg.addBatch();
+            }
+            insertLeg.executeBatch();
+          }
 
-      updateReservation.clearParameters();          //update reservation
-      updateReservation.setInt(1, rid);
-      updateReservation.setInt(2, fidWant1);
-      if (fidWant2 != 0){
-        updateReservation.setInt(3, fidWant2);
-      }else {                                                   // if fid2 not exists, then set fid2 to 0
-        updateReservation.setInt(3, 0);
+          stamp[0] = stamp();
+          conn.commit();
+          return rid;
+        }
+      });
+      if (booked > 0){
+        seatsTaken = false;                                     // the reservation keeps its seats
+        unused = 0;
+        lastWrite = System.nanoTime();
+        if (events != null){
+          events.booked(stamp[0], booked, loggedUser, cost, fids);
+        }
+        return "Booked flight(s), reservation ID: " + booked + "\n";
       }
-      updateReservation.setInt(4, 0);
-      updateReservation.setString(5, this.loggedUser);
-      updateReservation.setInt(6, cost);
-      updateReservation.setInt(7, 0);                          //update canceled
-      updateReservation.executeUpdate();
-      rid++;
-      return "Booked flight(s), reservation ID: " + (rid-1) + "\n";
+      return booked == 0 ? "Booking failed!\n" : "You cannot book two flights in the same day\n";
 
     } catch(SQLException e){
       e.printStackTrace();
+    } finally {
+      pool.release(pc);
+      if (unused > 0){
+        ridAllocator.release(unused);
+      }
+      if (seatsTaken){
+        try {
+          seats.release(fids);
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
     }
     return "Booking failed!\n";
   }
@@ -535,58 +706,62 @@ public class Query {
    *         balance: [balance]\n" where [balance] is the remaining balance in the
    *         user's account.
    */
-  public String transaction_pay(int reservationId){
+  public String transaction_pay(final int reservationId){
     //If no user has logged in, then return "Cannot pay, not logged in\n"
     if (this.loggedUser == null){
       return "Cannot pay, not logged in\n";
     }
+    PooledConnection pc = null;
     try{
-      //If the reservation is not found / not under the logged in user's
-      //         name
-      getReservationByRid.clearParameters();                  //return reservations with rid
-      getReservationByRid.setInt(1, reservationId);
-      ResultSet getResult = getReservationByRid.executeQuery();
-
-      if (!getResult.next()){
-        return "Cannot find unpaid reservation " + reservationId + " under user: " + this.loggedUser + "\n";
-      }
-      else {
-        int paid = getResult.getInt("paid");
-        int canceled = getResult.getInt("canceled");
-        if (paid == 1 || canceled == 1){                                    // if already paid or canceled
-          getResult.close();
-          return "Cannot find unpaid reservation " + reservationId + " under user: " + this.loggedUser + "\n";
-        }
-      /*  If the user does not have enough money in
-        their account, then return "User has only [balance] in account but
-        itinerary costs [cost]\n"*/
-        int cost = getResult.getInt("cost");
-
-        findBalance.clearParameters();
-        findBalance.setString(1, this.loggedUser);
-        ResultSet getBalance = findBalance.executeQuery();
-        getBalance.next();
-        int balance = getBalance.getInt(1);
-
-        if (cost > balance){                            //if cost > balance means no enough money
-          getBalance.close();
-          getReservationByRid.close();
-          return "User has only " + balance + " in account but itinerary costs " + cost + "\n";
-        }
-
-        updateBalance.clearParameters();                    // update balance
-        updateBalance.setInt(1, balance - cost);
-        updateBalance.setString(2, this.loggedUser);
-        updateBalance.executeUpdate();
+      pc = pool.borrow();
+      final PreparedStatement payReservation = pc.prepare(PAY_RESERVATION);
+      final PreparedStatement debit = pc.prepare(debitBalance);
+      final PreparedStatement shortfall = pc.prepare(PAYMENT_SHORTFALL);
+      return inTransaction(pc, new TransactionBody<String>() {
+        @Override
+        public String run(Connection conn) throws SQLException {
+          payReservation.setInt(1, reservationId);                // mark paid only if still unpaid and affordable
+          payReservation.setString(2, loggedUser);
+          payReservation.setString(3, loggedUser);
+          if (payReservation.executeUpdate() == 1){
+            debit.setInt(1, reservationId);                       // conditional debit, returns the new balance
+            debit.setString(2, loggedUser);
+            debit.setInt(3, reservationId);
+            ResultSet newBalance = debit.executeQuery();
+            if (newBalance.next()){
+              int balance = newBalance.getInt(1);
+              newBalance.close();
+              long stamp = stamp();
+              conn.commit();
+              lastWrite = System.nanoTime();
+              if (events != null){
+                events.paid(stamp, reservationId, loggedUser);
+              }
+              return "Paid reservation: " + reservationId + " remaining balance: " + balance + "\n";
+            }
+            newBalance.close();
+          }
 
-        setPaidStatus.clearParameters();                     //update paid_status
-        setPaidStatus.setInt(1, 1);
-        setPaidStatus.setInt(2, reservationId);
-        setPaidStatus.executeUpdate();
-        return "Paid reservation: " + reservationId + " remaining balance: " + (balance - cost) + "\n";
-      }
+          conn.rollback();                                        // refused: undo, so the reservation is unpaid again
+          shortfall.setInt(1, reservationId);                     // and find out why
+          shortfall.setString(2, loggedUser);
+          ResultSet reason = shortfall.executeQuery();
+          String response;
+          if (reason.next()){
+            response = "User has only " + reason.getInt(2) + " in account but itinerary costs " + reason.getInt(1)
+                    + "\n";
+          } else {
+            response = "Cannot find unpaid reservation " + reservationId + " under user: " + loggedUser + "\n";
+          }
+          reason.close();
+          conn.rollback();
+          return response;
+        }
+      });
     } catch(SQLException e){
       e.printStackTrace();
+    } finally {
+      pool.release(pc);
     }
     return "Failed to pay for reservation " + reservationId + "\n";
   }
@@ -617,71 +792,43 @@ public class Query {
       return "Cannot view reservations, not logged in\n";
     }
 
+    ConnectionPool reads = readPool();
+    PooledConnection pc = null;
     try{
-      searchReservation.clearParameters();
+      pc = reads.borrow();
+      PreparedStatement searchReservation = pc.prepare(SEARCH_RESERVATION);
       searchReservation.setString(1, this.loggedUser);
       ResultSet resResult = searchReservation.executeQuery();
-      //ResultSet resResult = resResult2;
-      //System.out.println(resResult);
-      if (!resResult.isBeforeFirst()) {
-        return "No reservations found\n";
-      }
-      else {
-        StringBuffer sb = new StringBuffer();
-        while (resResult.next()) {
-          int id = resResult.getInt("rid");
-          int paid = resResult.getInt("paid");
-          int fid1 = resResult.getInt("fid1");
-          int fid2 = resResult.getInt("fid2");
-          // get fid1 information
-          getFlight.clearParameters();
-          getFlight.setInt(1, fid1);
-          ResultSet fid1Res = getFlight.executeQuery();
-          fid1Res.next();
-
-          int dayOfMonth1 = fid1Res.getInt("day_of_month");
-          String carrierId1 = fid1Res.getString("carrier_id");
-          String flightNum1 = fid1Res.getString("flight_num");
-          String originCity1 = fid1Res.getString("origin_city");
-          String destCity1 = fid1Res.getString("dest_city");
-          int time1 = fid1Res.getInt("actual_time");
-          int capacity1 = fid1Res.getInt("capacity");
-          int price1 = fid1Res.getInt("price");
-          fid1Res.close();
-          String ispaid;
-          if (paid == 1) {
-            ispaid = "true:";
-          }
-          else {
-            ispaid = "false:";
-          }
-          sb.append("Reservation " + id + " paid: " + ispaid + "\n");
-          sb.append("ID: " + fid1 + " Day: " + dayOfMonth1 + " Carrier: " + carrierId1 + " Number: " + flightNum1 + " Origin: " + originCity1
-                  + " Dest: " + destCity1 + " Duration: " + time1 + " Capacity: " + capacity1 + " Price: " + price1 + "\n");
-          // get fid2 information
-          if (fid2 != 0) {
-            getFlight.clearParameters();
-            getFlight.setInt(1, fid2);
-            ResultSet fid2Res = getFlight.executeQuery();
-            fid2Res.next();
-
-            int dayOfMonth2 = fid2Res.getInt("day_of_month");
-            String carrierId2 = fid2Res.getString("carrier_id");
-            String flightNum2 = fid2Res.getString("flight_num");
-            String originCity2 = fid2Res.getString("origin_city");
-            String destCity2 = fid2Res.getString("dest_city");
-            int time2 = fid2Res.getInt("actual_time");
-            int capacity2 = fid2Res.getInt("capacity");
-            int price2 = fid2Res.getInt("price");
-            fid2Res.close();
-            sb.append("ID: " + fid2 + " Day: " + dayOfMonth2 + " Carrier: " + carrierId2 + " Number: " + flightNum2 + " Origin: " + originCity2
-                    + " Dest: " + destCity2 + " Duration: " + time2 + " Capacity: " + capacity2 + " Price: " + price2 + "\n");
+      FlightCache flights = FlightCache.getInstance(pool);
+      StringBuilder sb = output();
+      int previous = 0;
+      while (resResult.next()) {
+        int id = resResult.getInt(1);
+        if (id != previous) {                                // first row of a reservation
+          int paid = resResult.getInt(2);
+          int fid1 = resResult.getInt(3);
+          int fid2 = resResult.getInt(4);
+          sb.append("Reservation ").append(id).append(" paid: ").append(paid == 1 ? "true:" : "false:").append('\n');
+          flights.appendTo(sb, fid1).append('\n');
+          if (fid2 != 0) {                                   // fid2 is 0 for direct itineraries
+            flights.appendTo(sb, fid2).append('\n');
           }
+          previous = id;
+        }
+        int leg = resResult.getInt(5);
+        if (!resResult.wasNull()) {                          // a leg after the second
+          flights.appendTo(sb, leg).append('\n');
         }
-        return sb.toString();
       }
+      resResult.close();
+      if (sb.length() == 0) {
+        return "No reservations found\n";
+      }
+      return sb.toString();
     } catch(SQLException e){
       e.printStackTrace();
+    } finally {
+      reads.release(pc);
     }
     return "Failed to retrieve reservations\n";
   }
@@ -701,109 +848,254 @@ public class Query {
    *         reused by the system.
    */
   public String transaction_cancel(int reservationId){
+    return transaction_cancel(new int[] { reservationId });
+  }
+
+  /**
+   * Cancels several reservations in one transaction. Paid reservations are
+   * refunded and every canceled reservation gives its seats back.
+   *
+   * @param reservationIds the reservations to cancel
+   *
+   * @return "Cannot cancel reservations, not logged in\n" if no user has
+   *         logged in, otherwise one line per reservation ID, in the given
+   *         order, as transaction_cancel(int) would answer it
+   */
+  public String transaction_cancel(int[] reservationIds){
     if (this.loggedUser == null){
       return "Cannot cancel reservations, not logged in\n";
     }
+    final Set<Integer> requested = new LinkedHashSet<>();
+    for (int rid : reservationIds) {
+      requested.add(rid);
+    }
+    final Set<Integer> canceled = new HashSet<>();
+    final Set<Integer> refunded = new HashSet<>();
+    final List<Integer> freedFids = new ArrayList<>();         // every flight of the canceled reservations
+    final long[] stamp = new long[1];
+    PooledConnection pc = null;
     try{
-      getReservationByRid.clearParameters();                  //return reservations with rid
-      getReservationByRid.setInt(1, reservationId);
-      ResultSet getResult = getReservationByRid.executeQuery();
+      pc = pool.borrow();
+      final PooledConnection borrowed = pc;
+      final List<Integer> rids = new ArrayList<>(requested);
+      final PreparedStatement refund = pc.prepare(REFUND);
+      inTransaction(pc, new TransactionBody<Void>() {
+        @Override
+        public Void run(Connection conn) throws SQLException {
+          canceled.clear();
+          refunded.clear();
+          freedFids.clear();
+          int refundTotal = 0;
+          for (int from = 0; from < rids.size(); from += IN_LIST_LIMIT) {
+            int size = inListSize(rids.size() - from);
+            PreparedStatement findCancelable = borrowed.prepare(FIND_CANCELABLE + inList(size));
+            findCancelable.setString(1, loggedUser);             // only the user's live reservations
+            bindInList(findCancelable, 2, rids, from, size);
+            ResultSet found = findCancelable.executeQuery();
+            while (found.next()) {
+              if (canceled.add(found.getInt(1))) {               // first row of a reservation
+                freedFids.add(found.getInt(2));
+                if (found.getInt(3) != 0) {                      // fid2 is 0 for direct itineraries
+                  freedFids.add(found.getInt(3));
+                }
+                if (found.getInt(4) == 1) {                      // only paid reservations are refunded
+                  refundTotal += found.getInt(5);
+                  refunded.add(found.getInt(1));
+                }
+              }
+              int leg = found.getInt(6);
+              if (!found.wasNull()) {                            // a leg after the second
+                freedFids.add(leg);
+              }
+            }
+            found.close();
+          }
+          if (canceled.isEmpty()) {
+            conn.rollback();
+            return null;
+          }
 
-      if (!getResult.next()){
-        return "Failed to cancel reservation " + reservationId + "\n";
-      }
-      else {
-        int cost = getResult.getInt("cost");
-        int fid1 = getResult.getInt("fid1");
-        int fid2 = getResult.getInt("fid2");
-        int iscanceled = getResult.getInt("canceled");
-        getResult.close();
-
-        if (iscanceled == 1){                             // if iscanceled, then return error
-          return "Failed to cancel reservation " + reservationId + "\n";
+          if (refundTotal > 0) {
+            refund.setInt(1, refundTotal);
+            refund.setString(2, loggedUser);
+            refund.executeUpdate();
+          }
+
+          for (int from = 0; from < rids.size(); from += IN_LIST_LIMIT) {
+            int size = inListSize(rids.size() - from);
+            PreparedStatement cancelReservations = borrowed.prepare(CANCEL + inList(size));
+            cancelReservations.setString(1, loggedUser);
+            bindInList(cancelReservations, 2, rids, from, size);
+            cancelReservations.executeUpdate();
+          }
+
+          if (seats == null) {
+            // A user's live reservations are on different days, so no fid appears twice
+            for (int from = 0; from < freedFids.size(); from += IN_LIST_LIMIT) {
+              int size = inListSize(freedFids.size() - from);
+              PreparedStatement restoreSeats = borrowed.prepare(RESTORE_SEATS + inList(size));
+              bindInList(restoreSeats, 1, freedFids, from, size);
+              restoreSeats.executeUpdate();
+            }
+          }
+          stamp[0] = stamp();
+          conn.commit();
+          return null;
         }
+      });
+    } catch (SQLException e){
+      e.printStackTrace();
+      canceled.clear();
+    } finally {
+      pool.release(pc);
+    }
 
-        findBalance.clearParameters();                    // get current balance
-        findBalance.setString(1, this.loggedUser);
-        ResultSet getBalance = findBalance.executeQuery();
-        getBalance.next();
-        int remainBalance = getBalance.getInt("balance");
-        getBalance.close();
-
-        updateBalance.clearParameters();                    // update balance
-        updateBalance.setInt(1, cost + remainBalance);
-        updateBalance.setString(2, this.loggedUser);
-        updateBalance.execute();
-
-        cancelReservation.clearParameters();                   // update reservation table
-        cancelReservation.setInt(1, 0);
-        cancelReservation.setInt(2, 1);
-        cancelReservation.setInt(3, reservationId);
-        cancelReservation.executeUpdate();
-
-        // get 1st flight current capacity
-        getCapacities.clearParameters();
-        getCapacities.setInt(1, fid1);
-        ResultSet capacity1 = getCapacities.executeQuery();
-        capacity1.next();
-        int remain1 = capacity1.getInt("capacity");
-        capacity1.close();
-        // update 1st flight capacity table
-        addCapacity.clearParameters();
-        addCapacity.setInt(1, remain1 + 1);
-        addCapacity.setInt(2, fid1);
-        addCapacity.execute();
-
-        // get 2nd flight current capacity
-        if (fid2 != 0) {
-          getCapacities.clearParameters();
-          getCapacities.setInt(1, fid2);
-          ResultSet capacity2 = getCapacities.executeQuery();
-          capacity2.next();
-          int remain2 = capacity2.getInt("capacity");
-          capacity2.close();
-          // update 2nd flight capacity
-          addCapacity.clearParameters();
-          addCapacity.setInt(1, remain2 + 1);
-          addCapacity.setInt(2, fid2);
-          addCapacity.execute();
+    if (seats != null) {                                       // the in-memory inventory owns Capacities
+      try {
+        for (int i = 0; i < freedFids.size() && !canceled.isEmpty(); i++) {
+          seats.release(freedFids.get(i));
         }
-        return "Canceled reservation " + reservationId + "\n";
+      } catch (SQLException e) {
+        e.printStackTrace();
       }
+    }
 
+    if (!canceled.isEmpty()) {
+      lastWrite = System.nanoTime();
+    }
+    if (events != null) {
+      for (int rid : canceled) {
+        events.canceled(stamp[0], rid, loggedUser, refunded.contains(rid));
+      }
+    }
 
-    } catch (SQLException e){
-      e.printStackTrace();
+    StringBuilder sb = output();
+    for (int rid : reservationIds) {
+      if (canceled.remove(rid)) {
+        sb.append("Canceled reservation ").append(rid).append('\n');
+      } else {
+        sb.append("Failed to cancel reservation ").append(rid).append('\n');
+      }
     }
-    return "Failed to cancel reservation " + reservationId + "\n";
+    return sb.toString();
   }
 
   /**
-   * Example utility function that uses prepared statements
+   * The event log stamp of the transaction about to commit, 0 without a log
    */
-  private int checkFlightCapacity(int fid) throws SQLException {
-    checkFlightCapacityStatement.clearParameters();
-    checkFlightCapacityStatement.setInt(1, fid);
-    ResultSet results = checkFlightCapacityStatement.executeQuery();
-    results.next();
-    int capacity = results.getInt("capacity");
-    results.close();
-
-    return capacity;
+  private long stamp() {
+    return events == null ? 0 : events.stamp();
   }
 
+  /**
+   * The session's response buffer, emptied. Responses are copied out of it
+   * with toString, so it can be reused by the next command.
+   */
+  private StringBuilder output() {
+    if (out.capacity() > MAX_RETAINED_OUTPUT) {
+      out = new StringBuilder(OUTPUT_CAPACITY);
+    }
+    out.setLength(0);
+    return out;
+  }
 
-  class Itinerary{
-    public int fid1;
-    public int fid2;
-    public int day;
-    public int cost;
-    public int capacity;
+  /**
+   * "(?, ?, ...);" with n placeholders, to end an IN condition
+   */
+  private static String inList(int n) {
+    StringBuilder sb = new StringBuilder("(");
+    for (int i = 0; i < n; i++) {
+      sb.append(i == 0 ? "?" : ", ?");
+    }
+    return sb.append(");").toString();
+  }
+
+  /**
+   * Placeholders for the next chunk of an IN list with remaining values: the
+   * power of two that fits them, at most IN_LIST_LIMIT, so only a few
+   * statements per IN condition are ever prepared
+   */
+  private static int inListSize(int remaining) {
+    int size = 1;
+    while (size < remaining && size < IN_LIST_LIMIT) {
+      size <<= 1;
+    }
+    return size;
   }
+
+  /**
+   * Binds values from index from on to size placeholders starting at
+   * parameter first, repeating the last value to fill the list, which leaves
+   * the IN condition unchanged
+   */
+  private static void bindInList(PreparedStatement ps, int first, List<Integer> values, int from, int size)
+          throws SQLException {
+    int last = Math.min(values.size(), from + size) - 1;
+    for (int i = 0; i < size; i++) {
+      ps.setInt(first + i, values.get(Math.min(from + i, last)));
+    }
+  }
+
+  /**
+   * Work done inside one explicit database transaction. The body commits on
+   * success and rolls back itself when it decides not to go ahead.
+   */
+  interface TransactionBody<T> {
+    T run(Connection conn) throws SQLException;
+  }
+
+  /**
+   * Runs body as one explicit transaction on the borrowed connection. If the
+   * database picks it as a deadlock victim or reports a serialization failure,
+   * the transaction is rolled back and retried with bounded exponential
+   * backoff. Any other error is rolled back and rethrown. The commit or
+   * rollback that ends each attempt counts as a round trip of the command.
+   */
+  static <T> T inTransaction(PooledConnection pc, TransactionBody<T> body) throws SQLException {
+    Connection conn = pc.connection();
+    for (int attempt = 1; ; attempt++) {
+      conn.setAutoCommit(false);
+      try {
+        T result = body.run(conn);
+        pc.roundTrip();                                   // the commit or rollback that ended it
+        return result;
+      } catch (SQLException e) {
+        conn.rollback();
+        pc.roundTrip();
+        if (!isTransient(e) || attempt >= MAX_TRANSACTION_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        conn.setAutoCommit(true);
+      }
+      backoff(attempt);
+    }
+  }
+
+  /**
+   * Deadlock victim (SQL Server error 1205) or serialization failure (SQLSTATE
+   * 40001). A duplicate key is not retried: no transaction inserts a row that
+   * another may be inserting at the same time, so retrying would only fail
+   * again.
+   */
+  private static boolean isTransient(SQLException e) {
+    return e.getErrorCode() == 1205 || "40001".equals(e.getSQLState());
+  }
+
+  private static void backoff(int attempt) throws SQLException {
+    long limit = RETRY_BACKOFF_MILLIS << Math.min(attempt, 6);
+    try {
+      Thread.sleep(limit / 2 + (long) (Math.random() * (limit / 2)));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while retrying transaction", e);
+    }
+  }
+
   /**
    * A class to store flight information.
    */
-  class Flight {
+  static class Flight {
     public int fid;
     public int dayOfMonth;
     public String carrierId;
@@ -816,8 +1108,25 @@ public class Query {
 
     @Override
     public String toString() {
-      return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId + " Number: " + flightNum + " Origin: "
-              + originCity + " Dest: " + destCity + " Duration: " + time + " Capacity: " + capacity + " Price: " + price;
+      return appendTo(new StringBuilder(128)).toString();
+    }
+
+    /**
+     * Writes the flight in the toString format, without intermediate Strings
+     */
+    StringBuilder appendTo(StringBuilder sb) {
+      return format(sb, fid, dayOfMonth, carrierId, flightNum, originCity, destCity, time, capacity, price);
+    }
+
+    /**
+     * The one flight format shared by search, reservations and toString
+     */
+    static StringBuilder format(StringBuilder sb, int fid, int dayOfMonth, String carrierId, String flightNum,
+                                String originCity, String destCity, int time, int capacity, int price) {
+      return sb.append("ID: ").append(fid).append(" Day: ").append(dayOfMonth).append(" Carrier: ").append(carrierId)
+              .append(" Number: ").append(flightNum).append(" Origin: ").append(originCity).append(" Dest: ")
+              .append(destCity).append(" Duration: ").append(time).append(" Capacity: ").append(capacity)
+              .append(" Price: ").append(price);
     }
   }
 }
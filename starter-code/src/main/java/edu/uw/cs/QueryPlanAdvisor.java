@@ -0,0 +1,92 @@
+package edu.uw.cs;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * "FlightService advise": prints the plan the database picks for every canned
+ * statement in Query and flags the ones that read a whole table or index
+ * where they have a condition to look rows up by, i.e. those that need an
+ * index (see migrations/). Statements without a WHERE clause are expected to
+ * read everything and are not flagged.
+ */
+class QueryPlanAdvisor {
+  // H2 names the index it scans without a condition, SQL Server names the operator
+  private static final Pattern SCAN = Pattern.compile("/\\*\\s*[\\w.]+\\s*\\*/|Table Scan|Index Scan");
+  private static final Pattern STATEMENT = Pattern.compile("^\\s*(SELECT|INSERT|UPDATE|DELETE|MERGE)\\b",
+          Pattern.CASE_INSENSITIVE);
+  private static final Pattern CONDITION = Pattern.compile("\\bWHERE\\b", Pattern.CASE_INSENSITIVE);
+
+  private QueryPlanAdvisor() {
+  }
+
+  /**
+   * Query's canned statements by field name, in declaration order. Those
+   * completed with an IN list at run time get a list of two.
+   */
+  static Map<String, String> statements(StorageBackend backend) throws IllegalAccessException {
+    Map<String, String> statements = new LinkedHashMap<>();
+    for (Field field : Query.class.getDeclaredFields()) {
+      int modifiers = field.getModifiers();
+      if (!Modifier.isStatic(modifiers) || !Modifier.isFinal(modifiers) || field.getType() != String.class) {
+        continue;
+      }
+      field.setAccessible(true);
+      String sql = (String) field.get(null);
+      if (STATEMENT.matcher(sql).find()) {
+        statements.put(field.getName(), sql.endsWith(" IN ") ? sql + "(?, ?);" : sql);
+      }
+    }
+    statements.put("debitBalance", Query.debitBalance(backend));
+    return statements;
+  }
+
+  /**
+   * Plan lines of the statement that scan, or none if it has no condition
+   */
+  static List<String> scans(String sql, List<String> plan) {
+    List<String> scans = new ArrayList<>();
+    if (CONDITION.matcher(sql).find()) {
+      for (String line : plan) {
+        if (SCAN.matcher(line).find()) {
+          scans.add(line.trim());
+        }
+      }
+    }
+    return scans;
+  }
+
+  static void main(String[] args) throws Exception {
+    ConnectionPool pool = ConnectionPool.getInstance();
+    StorageBackend backend = pool.backend();
+    List<String> flagged = new ArrayList<>();
+    Map<String, String> statements = statements(backend);
+    PooledConnection pc = pool.borrow();
+    try {
+      for (Map.Entry<String, String> e : statements.entrySet()) {
+        System.out.println(e.getKey());
+        List<String> plan = backend.explain(pc.connection(), e.getValue());
+        for (String line : plan) {
+          System.out.println("    " + line);
+        }
+        for (String scan : scans(e.getValue(), plan)) {
+          System.out.println("  SCAN: " + scan);
+          if (!flagged.contains(e.getKey())) {
+            flagged.add(e.getKey());
+          }
+        }
+        System.out.println();
+      }
+    } finally {
+      pool.release(pc);
+    }
+    if (flagged.isEmpty()) {
+      System.out.println("No statement scans a table (" + statements.size() + " statements on " + backend.name() + ")");
+    } else {
+      System.out.println(flagged.size() + " of " + statements.size() + " statements scan a table on " + backend.name()
+              + ": " + flagged);
+    }
+  }
+}
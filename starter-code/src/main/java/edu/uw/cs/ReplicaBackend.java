@@ -0,0 +1,56 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * A read-only copy of the primary database at another JDBC URL, e.g. an
+ * Azure SQL geo-replica. It speaks the primary's dialect; connections are
+ * marked read-only so a write sent to it by mistake fails.
+ */
+class ReplicaBackend implements StorageBackend {
+  private final StorageBackend primary;
+  private final String url;
+
+  ReplicaBackend(StorageBackend primary, String url) {
+    this.primary = primary;
+    this.url = url;
+  }
+
+  @Override
+  public Connection connect() throws SQLException {
+    Connection conn = DriverManager.getConnection(url);
+    conn.setReadOnly(true);
+    return conn;
+  }
+
+  @Override
+  public String name() {
+    return primary.name() + "-replica";
+  }
+
+  @Override
+  public String updateReturning(String table, String assignments, String condition, String column) {
+    return primary.updateReturning(table, assignments, condition, column);
+  }
+
+  @Override
+  public List<String> explain(Connection conn, String sql) throws SQLException {
+    return primary.explain(conn, sql);
+  }
+
+  @Override
+  public boolean transactionalDdl() {
+    return primary.transactionalDdl();
+  }
+
+  @Override
+  public List<String> suspendIndexes(Connection conn, String table) throws SQLException {
+    return primary.suspendIndexes(conn, table);
+  }
+
+  @Override
+  public int snapshotIsolation() {
+    return primary.snapshotIsolation();
+  }
+}
@@ -0,0 +1,123 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Hands out reservation IDs that are unique across every Query in the process
+ * and across restarts. IDs are leased from the ReservationIds counter row in
+ * blocks, so the row is only touched once per block, and handed out from an
+ * in-process atomic counter.
+ */
+class ReservationIdAllocator {
+  private static final String LEASE_BLOCK = "UPDATE ReservationIds SET next_rid = next_rid + ? WHERE id = 1;";
+  private static final String LEASED_UP_TO = "SELECT next_rid FROM ReservationIds WHERE id = 1;";
+  // creates the counter row on first use, continuing after any existing reservations
+  private static final String INIT_COUNTER = "INSERT INTO ReservationIds (id, next_rid) "
+          + "SELECT 1, COALESCE(MAX(rid), 0) + 1 FROM Reservation "
+          + "WHERE NOT EXISTS (SELECT * FROM ReservationIds);";
+  private static final String RESET_COUNTER = "UPDATE ReservationIds SET next_rid = 1 WHERE id = 1;";
+
+  private static ReservationIdAllocator instance;
+
+  private final ConnectionPool pool;
+  private final int blockSize;
+  private volatile Block block = new Block(0, 0);
+
+  /**
+   * IDs [next, end) leased from the database
+   */
+  private static final class Block {
+    final AtomicInteger next;
+    final int end;
+
+    Block(int start, int end) {
+      this.next = new AtomicInteger(start);
+      this.end = end;
+    }
+  }
+
+  ReservationIdAllocator(ConnectionPool pool, int blockSize) {
+    this.pool = pool;
+    this.blockSize = Math.max(1, blockSize);
+  }
+
+  /**
+   * Returns the process-wide allocator for the given pool
+   */
+  static synchronized ReservationIdAllocator getInstance(ConnectionPool pool) {
+    if (instance == null) {
+      String blockSize = pool.config().getProperty("rid.block_size", "100");
+      instance = new ReservationIdAllocator(pool, Integer.parseInt(blockSize.trim()));
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the next unused reservation ID, leasing a new block from the
+   * database when the current one runs out
+   */
+  int next() throws SQLException {
+    while (true) {
+      Block b = block;
+      int id = b.next.getAndIncrement();
+      if (id < b.end) {
+        return id;
+      }
+      refill(b);
+    }
+  }
+
+  /**
+   * Gives back an ID that was never used, if no later ID has been handed out
+   * since, so failed bookings do not leave gaps
+   */
+  void release(int id) {
+    block.next.compareAndSet(id + 1, id);
+  }
+
+  /**
+   * Restarts numbering at 1. Only safe once the Reservation table is empty.
+   */
+  synchronized void reset(Connection conn) throws SQLException {
+    PreparedStatement resetCounter = conn.prepareStatement(RESET_COUNTER);
+    try {
+      resetCounter.executeUpdate();
+    } finally {
+      resetCounter.close();
+    }
+    block = new Block(0, 0);
+  }
+
+  private synchronized void refill(Block exhausted) throws SQLException {
+    if (block != exhausted) {
+      return;                           // another thread already leased a new block
+    }
+    final PooledConnection pc = pool.borrow();
+    try {
+      // another process leasing at the same time can make this the deadlock victim
+      int end = Query.inTransaction(pc, new Query.TransactionBody<Integer>() {
+        @Override
+        public Integer run(Connection conn) throws SQLException {
+          PreparedStatement lease = pc.prepare(LEASE_BLOCK);
+          lease.setInt(1, blockSize);
+          if (lease.executeUpdate() == 0) {
+            pc.prepare(INIT_COUNTER).executeUpdate();
+            lease.setInt(1, blockSize);
+            lease.executeUpdate();
+          }
+          ResultSet rs = pc.prepare(LEASED_UP_TO).executeQuery();
+          rs.next();
+          int leasedUpTo = rs.getInt(1);
+          rs.close();
+          conn.commit();
+          return leasedUpTo;
+        }
+      });
+      block = new Block(end - blockSize, end);
+    } finally {
+      pool.release(pc);
+    }
+  }
+}
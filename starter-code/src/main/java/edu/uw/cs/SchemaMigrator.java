@@ -0,0 +1,239 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.zip.CRC32;
+
+/**
+ * Brings the database from the createTables.sql baseline up to date. Every
+ * change to the schema since is a script named NNN_description.sql in
+ * schema.migrations_dir; scripts not yet recorded in the SchemaVersion table
+ * are run in version order when the connection pool starts.
+ *
+ * Where DDL is transactional (SQL Server) a script runs in one transaction
+ * together with its SchemaVersion row, so it is applied whole or not at all,
+ * and of two processes starting at once the second fails on the row's key.
+ * Elsewhere (H2 commits every DDL statement) the row is written first and
+ * counts the statements applied, each committed right after its statement; a
+ * script that failed halfway is resumed at the statement that failed.
+ */
+class SchemaMigrator {
+  private static final Pattern SCRIPT_NAME = Pattern.compile("(\\d+)_[\\w-]+\\.sql");
+
+  private static final String HISTORY_EXISTS = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES "
+          + "WHERE UPPER(TABLE_NAME) = 'SCHEMAVERSION';";
+  private static final String CREATE_HISTORY = "CREATE TABLE SchemaVersion (version INT PRIMARY KEY, "
+          + "script VARCHAR(200), checksum BIGINT, applied_at DATETIME, statements INT);";
+  private static final String APPLIED = "SELECT version, checksum, statements FROM SchemaVersion;";
+  private static final String RECORD = "INSERT INTO SchemaVersion (version, script, checksum, applied_at, statements) "
+          + "VALUES (?, ?, ?, ?, ?);";
+  private static final String CHECKSUM = "UPDATE SchemaVersion SET checksum = ? WHERE version = ?;";
+  // Fails to update if another migrator got further first
+  private static final String PROGRESS = "UPDATE SchemaVersion SET statements = ? WHERE version = ? AND statements = ?;";
+
+  private SchemaMigrator() {
+  }
+
+  /**
+   * Runs the scripts of schema.migrations_dir (migrations by default, empty
+   * turns migration off) that the database has not seen yet, or finishes
+   * those left halfway. A missing directory has no scripts.
+   *
+   * @return the scripts applied
+   * @throws SQLException if a script fails; later ones are not run
+   */
+  static List<File> migrate(StorageBackend backend, Properties configProps) throws SQLException {
+    String dir = configProps.getProperty("schema.migrations_dir", "migrations").trim();
+    if (dir.isEmpty()) {
+      return Collections.emptyList();
+    }
+    File directory = new File(dir);
+    if (!directory.isDirectory()) {
+      System.err.println("No schema migrations directory " + directory.getAbsolutePath() + ", none applied");
+      return Collections.emptyList();
+    }
+
+    List<File> applied = new ArrayList<>();
+    Connection conn = backend.connect();
+    try {
+      Statement s = conn.createStatement();
+      ResultSet rs = s.executeQuery(HISTORY_EXISTS);
+      rs.next();
+      if (rs.getInt(1) == 0) {
+        s.execute(CREATE_HISTORY);
+      }
+      rs.close();
+      Map<Integer, Long> checksums = new HashMap<>();
+      Map<Integer, Integer> progress = new HashMap<>();
+      rs = s.executeQuery(APPLIED);
+      while (rs.next()) {
+        checksums.put(rs.getInt(1), rs.getLong(2));
+        progress.put(rs.getInt(1), rs.getInt(3));
+      }
+      rs.close();
+      s.close();
+
+      for (File script : scripts(directory)) {
+        int version = version(script);
+        String text = read(script);
+        Long recorded = checksums.get(version);
+        if (recorded == null) {
+          if (backend.transactionalDdl()) {
+            apply(conn, version, script, text);
+          } else {
+            record(conn, version, script, text, 0);
+            resume(conn, version, script, text, 0);
+          }
+          applied.add(script);
+        } else if (progress.get(version) < statements(text).size()) {
+          resume(conn, version, script, text, progress.get(version));  // e.g. fixed after it failed
+          applied.add(script);
+        } else if (recorded != checksum(text)) {
+          System.err.println("Schema migration " + script.getName() + " changed after it was applied");
+        }
+      }
+    } finally {
+      conn.close();
+    }
+    return applied;
+  }
+
+  /**
+   * Runs the whole script and records it in one transaction
+   */
+  private static void apply(Connection conn, int version, File script, String text) throws SQLException {
+    List<String> statements = statements(text);
+    conn.setAutoCommit(false);
+    try {
+      record(conn, version, script, text, statements.size());   // first, so a concurrent migrator stops here
+      Statement s = conn.createStatement();
+      for (String ddl : statements) {
+        s.execute(ddl);
+      }
+      s.close();
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw new SQLException("Schema migration " + script.getName() + " failed", e);
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  /**
+   * Runs the script's statements from the given one on, committing the count
+   * of statements applied after each
+   */
+  private static void resume(Connection conn, int version, File script, String text, int from)
+          throws SQLException {
+    List<String> statements = statements(text);
+    conn.setAutoCommit(false);
+    try {
+      PreparedStatement fixed = conn.prepareStatement(CHECKSUM);     // the script may have been fixed since
+      fixed.setLong(1, checksum(text));
+      fixed.setInt(2, version);
+      fixed.executeUpdate();
+      fixed.close();
+      Statement s = conn.createStatement();
+      PreparedStatement progress = conn.prepareStatement(PROGRESS);
+      for (int i = from; i < statements.size(); i++) {
+        s.execute(statements.get(i));
+        progress.setInt(1, i + 1);
+        progress.setInt(2, version);
+        progress.setInt(3, i);
+        if (progress.executeUpdate() == 0) {
+          throw new SQLException("Another process is applying schema migration " + script.getName());
+        }
+        conn.commit();
+      }
+      progress.close();
+      s.close();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw new SQLException("Schema migration " + script.getName() + " failed", e);
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  private static void record(Connection conn, int version, File script, String text, int statements)
+          throws SQLException {
+    PreparedStatement record = conn.prepareStatement(RECORD);
+    try {
+      record.setInt(1, version);
+      record.setString(2, script.getName());
+      record.setLong(3, checksum(text));
+      record.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+      record.setInt(5, statements);
+      record.executeUpdate();
+    } finally {
+      record.close();
+    }
+  }
+
+  /**
+   * Migration scripts in the directory, by version
+   *
+   * @throws SQLException if two scripts have the same version
+   */
+  static List<File> scripts(File directory) throws SQLException {
+    TreeMap<Integer, File> byVersion = new TreeMap<>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (SCRIPT_NAME.matcher(f.getName()).matches()) {
+          File other = byVersion.put(version(f), f);
+          if (other != null) {
+            throw new SQLException("Schema migrations " + other.getName() + " and " + f.getName()
+                    + " have the same version");
+          }
+        }
+      }
+    }
+    return new ArrayList<>(byVersion.values());
+  }
+
+  /**
+   * The statements of a script: "--" comment lines are dropped and the rest
+   * is split on semicolons
+   */
+  static List<String> statements(String script) {
+    StringBuilder sql = new StringBuilder();
+    for (String line : script.split("\n")) {
+      if (!line.trim().startsWith("--")) {
+        sql.append(line).append('\n');
+      }
+    }
+    List<String> statements = new ArrayList<>();
+    for (String statement : sql.toString().split(";")) {
+      if (!statement.trim().isEmpty()) {
+        statements.add(statement.trim());
+      }
+    }
+    return statements;
+  }
+
+  static String read(File script) throws SQLException {
+    try {
+      return new String(Files.readAllBytes(script.toPath()), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new SQLException("Cannot read schema script " + script, e);
+    }
+  }
+
+  private static int version(File script) {
+    Matcher m = SCRIPT_NAME.matcher(script.getName());
+    m.matches();
+    return Integer.parseInt(m.group(1));
+  }
+
+  private static long checksum(String text) {
+    CRC32 crc = new CRC32();
+    crc.update(text.replace("\r\n", "\n").getBytes(StandardCharsets.UTF_8));
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,324 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Shared cache of search results in front of the flight index, keyed by
+ * origin, destination, day and the most flights an itinerary may have.
+ * An entry holds the sorted itineraries found for some k, so any request for
+ * at most k itineraries is answered with a prefix of it. Entries expire after
+ * search_cache.ttl_ms. Lookups take no lock: a hit only marks its entry as
+ * referenced. Once more than search_cache.max_entries are held, the thread
+ * that inserted one evicts in CLOCK order, an approximation of least recently
+ * used: the clock hand spares a marked entry once, clearing its mark, and
+ * evicts unmarked or expired ones. Identical searches that miss at the same
+ * time share one lookup. When the flight index is rebuilt from refreshed
+ * flights every entry is dropped, and searches still running on the old index
+ * are not kept.
+ */
+class SearchCache {
+  private static final Query.Flight[][] NO_ITINERARIES = new Query.Flight[0][];
+
+  private static volatile SearchCache instance;
+
+  private volatile FlightIndex index;
+  private final int maxHops;
+  private final int maxExpansions;
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+  private final Queue<Key> clock = new ArrayDeque<>();          // keys from the hand onwards, guarded by itself
+  private final ConcurrentHashMap<Key, FutureTask<Entry>> loading = new ConcurrentHashMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  SearchCache(FlightIndex index, int maxHops, int maxExpansions, final int maxEntries, long ttlMillis) {
+    this.index = index;
+    this.maxHops = maxHops;
+    this.maxExpansions = maxExpansions;
+    this.maxEntries = maxEntries;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+  }
+
+  /**
+   * Returns the shared cache, built on first use over the shared flight index
+   */
+  static SearchCache getInstance(ConnectionPool pool) throws SQLException {
+    FlightIndex index = FlightIndex.getInstance(pool);
+    SearchCache cache = instance;
+    if (cache == null) {
+      synchronized (SearchCache.class) {
+        cache = instance;
+        if (cache == null) {
+          Properties config = pool.config();
+          int maxEntries = Integer.parseInt(config.getProperty("search_cache.max_entries", "10000").trim());
+          long ttlMillis = Long.parseLong(config.getProperty("search_cache.ttl_ms", "300000").trim());
+          int maxHops = Integer.parseInt(config.getProperty("search.max_hops", "4").trim());
+          int maxExpansions = Integer.parseInt(config.getProperty("search.max_expansions", "100000").trim());
+          cache = new SearchCache(index, maxHops, maxExpansions, maxEntries, ttlMillis);
+          cache.registerGauges();
+          instance = cache;
+        }
+      }
+    }
+    cache.follow(index);
+    return cache;
+  }
+
+  /**
+   * Serves searches from the given index from now on, forgetting everything
+   * found with the previous one
+   */
+  void follow(FlightIndex current) {
+    if (index != current) {
+      synchronized (clock) {
+        if (index != current) {
+          index = current;
+          entries.clear();
+          clock.clear();
+        }
+      }
+    }
+  }
+
+  /**
+   * Up to k itineraries of at most legs flights: direct flights by duration,
+   * then itineraries with stops by total duration. legs is capped at
+   * search.max_hops, though never below two.
+   */
+  Query.Flight[][] itineraries(String originCity, String destCity, int dayOfMonth, int legs, int k)
+          throws SQLException {
+    if (k <= 0) {
+      return NO_ITINERARIES;
+    }
+    legs = Math.max(1, Math.min(legs, Math.max(2, maxHops)));
+    FlightIndex searched = index;
+    if (maxEntries <= 0) {
+      return search(searched, originCity, destCity, dayOfMonth, legs, k).itineraries;
+    }
+
+    Key key = new Key(searched, originCity, destCity, dayOfMonth, legs);
+    Entry entry = entries.get(key);
+    if (entry != null && entry.answers(k, System.nanoTime())) {
+      if (!entry.referenced) {
+        entry.referenced = true;
+      }
+      hits.incrementAndGet();
+      return entry.prefix(k);
+    }
+
+    FutureTask<Entry> load = new FutureTask<>(new SearchTask(key, k));
+    FutureTask<Entry> running = loading.putIfAbsent(key, load);
+    if (running == null) {
+      misses.incrementAndGet();
+      try {
+        load.run();
+        entry = await(load);
+        store(key, entry);
+      } finally {
+        loading.remove(key, load);
+      }
+      return entry.prefix(k);
+    }
+
+    coalesced.incrementAndGet();                                // someone is already running this search
+    entry = await(running);
+    if (!entry.answers(k, System.nanoTime())) {
+      entry = search(searched, originCity, destCity, dayOfMonth, legs, k);   // theirs asked for fewer itineraries
+    }
+    return entry.prefix(k);
+  }
+
+  long hits() {
+    return hits.get();
+  }
+
+  long misses() {
+    return misses.get();
+  }
+
+  /**
+   * Misses answered by a concurrent identical search instead of running again
+   */
+  long coalesced() {
+    return coalesced.get();
+  }
+
+  long evictions() {
+    return evictions.get();
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private void registerGauges() {
+    Metrics metrics = Metrics.getInstance();
+    metrics.gauge("search_cache.hits", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return hits();
+      }
+    });
+    metrics.gauge("search_cache.misses", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return misses();
+      }
+    });
+    metrics.gauge("search_cache.coalesced", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return coalesced();
+      }
+    });
+    metrics.gauge("search_cache.evictions", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return evictions();
+      }
+    });
+    metrics.gauge("search_cache.entries", new Metrics.Gauge() {
+      @Override
+      public long value() {
+        return size();
+      }
+    });
+  }
+
+  /**
+   * Caches an entry found with the current index, then moves the clock hand
+   * until no more than search_cache.max_entries are held
+   */
+  private void store(Key key, Entry entry) {
+    synchronized (clock) {
+      if (index != key.index) {
+        return;                                                 // the flights were refreshed meanwhile
+      }
+      if (entries.put(key, entry) == null) {
+        clock.add(key);                                         // a replaced entry keeps its place
+      }
+      long now = System.nanoTime();
+      while (entries.size() > maxEntries) {
+        Key hand = clock.poll();
+        Entry e = entries.get(hand);
+        if (e.referenced && now - e.expiresAt < 0) {
+          e.referenced = false;                                 // spared once
+          clock.add(hand);
+        } else {
+          entries.remove(hand);
+          evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private Entry search(FlightIndex index, String originCity, String destCity, int dayOfMonth, int legs, int k) {
+    List<Query.Flight[]> found = new ArrayList<>();
+    for (Query.Flight f : index.direct(dayOfMonth, originCity, destCity, k)) {
+      found.add(new Query.Flight[] { f });
+    }
+    if (legs == 2 && found.size() < k) {
+      found.addAll(index.oneStop(dayOfMonth, originCity, destCity, k - found.size()));
+    } else if (legs > 2 && found.size() < k) {
+      found.addAll(index.multiHop(dayOfMonth, originCity, destCity, legs, k - found.size(), maxExpansions));
+    }
+    return new Entry(found.toArray(new Query.Flight[0][]), k, System.nanoTime() + ttlNanos);
+  }
+
+  private static Entry await(FutureTask<Entry> load) throws SQLException {
+    try {
+      return load.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a search", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException) {
+        throw (SQLException) e.getCause();
+      }
+      throw new SQLException("Search failed", e.getCause());
+    }
+  }
+
+  private final class SearchTask implements Callable<Entry> {
+    private final Key key;
+    private final int k;
+
+    SearchTask(Key key, int k) {
+      this.key = key;
+      this.k = k;
+    }
+
+    @Override
+    public Entry call() {
+      return search(key.index, key.originCity, key.destCity, key.dayOfMonth, key.legs, k);
+    }
+  }
+
+  /**
+   * The itineraries found when searching for k of them
+   */
+  private static final class Entry {
+    final Query.Flight[][] itineraries;
+    final int k;
+    final long expiresAt;
+    volatile boolean referenced;                                // hit since the clock hand last passed
+
+    Entry(Query.Flight[][] itineraries, int k, long expiresAt) {
+      this.itineraries = itineraries;
+      this.k = k;
+      this.expiresAt = expiresAt;
+    }
+
+    /**
+     * A search for at most k itineraries, or one that found fewer than it
+     * asked for, has every itinerary a larger request would see first
+     */
+    boolean answers(int requested, long now) {
+      return now - expiresAt < 0 && (requested <= k || itineraries.length < k);
+    }
+
+    Query.Flight[][] prefix(int requested) {
+      return requested >= itineraries.length ? itineraries : Arrays.copyOf(itineraries, requested);
+    }
+  }
+
+  private static final class Key {
+    final FlightIndex index;
+    final String originCity;
+    final String destCity;
+    final int dayOfMonth;
+    final int legs;
+    private final int hash;
+
+    Key(FlightIndex index, String originCity, String destCity, int dayOfMonth, int legs) {
+      this.index = index;
+      this.originCity = originCity;
+      this.destCity = destCity;
+      this.dayOfMonth = dayOfMonth;
+      this.legs = legs;
+      this.hash = Objects.hash(originCity, destCity, dayOfMonth, legs);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return index == other.index && dayOfMonth == other.dayOfMonth && legs == other.legs
+              && originCity.equals(other.originCity) && destCity.equals(other.destCity);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
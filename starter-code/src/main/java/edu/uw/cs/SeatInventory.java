@@ -0,0 +1,360 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * In-memory seat counts for every flight, used instead of reading and writing
+ * Capacities rows when seats.inventory = memory. Bookings are admitted against
+ * lock-striped counters, so a busy flight does not serialize on one database
+ * row. A background writer copies changed counts to Capacities in batches.
+ *
+ * The counts are not logged anywhere else: a crash loses the changes not yet
+ * written, and seats are taken before a booking commits and given back after
+ * a cancel commits, so Capacities can be off by a few seats. On startup the
+ * counts are therefore rebuilt from the live reservations, which are always
+ * right, and written back where Capacities differs. When the flight cache
+ * is refreshed, say after import-flights, the counts are rebuilt for the new
+ * flights before the next change.
+ */
+class SeatInventory {
+  private static final String LOAD_CAPACITIES = "SELECT fid, capacity FROM Capacities;";
+
+  // Seats held by live reservations, per flight
+  private static final String LIVE_SEATS = "SELECT fid, COUNT(*) FROM ("
+          + "SELECT fid1 AS fid FROM Reservation WHERE canceled = 0 "
+          + "UNION ALL SELECT fid2 FROM Reservation WHERE canceled = 0 AND fid2 <> 0 "
+          + "UNION ALL SELECT L.fid FROM ReservationLegs L, Reservation R WHERE L.rid = R.rid AND R.canceled = 0"
+          + ") S GROUP BY fid;";
+
+  // Sets a flight's remaining seats, inserting its Capacities row if it has none
+  private static final String WRITE_CAPACITY = "MERGE INTO Capacities AS C "
+          + "USING (SELECT CAST(? AS INT) AS fid, CAST(? AS INT) AS capacity) AS S ON C.fid = S.fid "
+          + "WHEN MATCHED THEN UPDATE SET capacity = S.capacity "
+          + "WHEN NOT MATCHED THEN INSERT (fid, capacity) VALUES (S.fid, S.capacity);";
+
+  private static final int STRIPES = 256;
+
+  private static SeatInventory instance;
+
+  private final ConnectionPool pool;
+  private final Object[] locks = new Object[STRIPES];
+  private volatile Counts counts;
+  private final ScheduledExecutorService writer;
+
+  /**
+   * Seats left on every flight of one flight cache, by cache position. A
+   * refreshed cache gets new Counts; the old ones are retired first, and a
+   * change that finds them retired is made again on the new ones.
+   */
+  private static final class Counts {
+    final FlightCache flights;
+    final int[] remaining;                               // guarded by the position's stripe
+    final boolean[] dirty;                               // changed since last written to Capacities
+    final ConcurrentLinkedQueue<Integer> changed = new ConcurrentLinkedQueue<>();
+    boolean retired;                                     // guarded by every stripe
+
+    Counts(FlightCache flights) {
+      this.flights = flights;
+      this.remaining = new int[flights.size()];
+      this.dirty = new boolean[flights.size()];
+    }
+  }
+
+  private SeatInventory(ConnectionPool pool, long flushIntervalMillis) {
+    this.pool = pool;
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i] = new Object();
+    }
+
+    writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "seat-inventory-writer");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    writer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
+    }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the shared inventory, or null if seats.inventory is not memory.
+   * On first use it is rebuilt from the live reservations.
+   */
+  static synchronized SeatInventory getInstance(ConnectionPool pool) throws SQLException {
+    Properties config = pool.config();
+    if (!config.getProperty("seats.inventory", "database").trim().equalsIgnoreCase("memory")) {
+      return null;
+    }
+    if (instance == null) {
+      long flushInterval = Long.parseLong(config.getProperty("seats.flush_interval_ms", "200").trim());
+      SeatInventory inventory = new SeatInventory(pool, flushInterval);
+      inventory.follow();
+      instance = inventory;
+    }
+    return instance;
+  }
+
+  /**
+   * Takes one seat on each flight, or none if any is full. A fid of 0 (the
+   * missing second flight of a direct itinerary) is skipped.
+   *
+   * @throws SQLException if a flight does not exist
+   */
+  boolean reserve(int... fids) throws SQLException {
+    int[] distinct = distinct(fids);
+    for (int taken = 0; taken < distinct.length; taken++) {
+      if (!change(distinct[taken], -1)) {
+        for (int i = 0; i < taken; i++) {                 // give back the seats already taken
+          change(distinct[i], 1);
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gives back the seats taken by reserve. A flight that an import has
+   * removed since is skipped.
+   *
+   * @throws SQLException if the flight cache cannot be refreshed
+   */
+  void release(int... fids) throws SQLException {
+    for (int fid : distinct(fids)) {
+      change(fid, 1);
+    }
+  }
+
+  /**
+   * Seats left on the flight
+   *
+   * @throws SQLException if the flight does not exist
+   */
+  int remaining(int fid) throws SQLException {
+    Counts c = counts();
+    int i = position(c, fid);
+    synchronized (lock(i)) {
+      return c.remaining[i];
+    }
+  }
+
+  /**
+   * Forgets every booking after Capacities has been cleared: all flights are
+   * back to full capacity.
+   */
+  synchronized void reset() {
+    Counts c = counts;
+    c.changed.clear();
+    for (int i = 0; i < c.remaining.length; i++) {
+      synchronized (lock(i)) {
+        c.remaining[i] = c.flights.capacityAt(i);
+        c.dirty[i] = false;
+      }
+    }
+  }
+
+  /**
+   * Writes the counts changed since the last call to Capacities in one batch
+   */
+  synchronized void flush() throws SQLException {
+    Counts c = counts;                                  // follow is synchronized too, so c stays current
+    List<Integer> positions = new ArrayList<>();
+    for (Integer i = c.changed.poll(); i != null; i = c.changed.poll()) {
+      positions.add(i);
+    }
+
+    if (positions.isEmpty()) {
+      return;                                           // nothing booked or canceled since the last flush
+    }
+
+    PooledConnection pc = pool.borrow();
+    Connection conn = pc.connection();
+    try {
+      PreparedStatement write = pc.prepare(WRITE_CAPACITY);
+      conn.setAutoCommit(false);
+      for (int i : positions) {
+        int count;
+        synchronized (lock(i)) {
+          c.dirty[i] = false;
+          count = c.remaining[i];
+        }
+        write.setInt(1, c.flights.fidAt(i));
+        write.setInt(2, count);
+        write.addBatch();
+      }
+      write.executeBatch();
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      for (int i : positions) {                         // try these again next time
+        markDirty(c, i);
+      }
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+      pool.release(pc);
+    }
+  }
+
+  /**
+   * The counts of the current flight cache, built first if the cache was
+   * refreshed since
+   */
+  private Counts counts() throws SQLException {
+    Counts c = counts;
+    if (c == null || c.flights != FlightCache.getInstance(pool)) {
+      c = follow();
+    }
+    return c;
+  }
+
+  /**
+   * Builds the counts of the current flight cache. A flight already counted
+   * keeps its count, moved by any change in its capacity, so seats taken by
+   * bookings that have not committed yet stay taken. Any other flight, and
+   * every flight at startup, starts at its full capacity less the seats of
+   * its live reservations. Counts that differ from Capacities, say because
+   * a crash came between a commit and its seat change or before a flush, or
+   * because an import reseeded Capacities, are written back by the next
+   * flush; pending writes of the old counts are carried over.
+   */
+  private synchronized Counts follow() throws SQLException {
+    FlightCache flights = FlightCache.getInstance(pool);
+    Counts previous = counts;
+    if (previous != null && previous.flights == flights) {
+      return previous;                                  // another thread followed first
+    }
+
+    Counts next = new Counts(flights);
+    for (int i = 0; i < next.remaining.length; i++) {
+      next.remaining[i] = flights.capacityAt(i);
+    }
+    int[] stored = new int[next.remaining.length];
+    Arrays.fill(stored, -1);                             // no Capacities row
+    PooledConnection pc = pool.borrow();
+    try {
+      ResultSet rs = pc.prepare(LIVE_SEATS).executeQuery();
+      while (rs.next()) {
+        int i = flights.indexOf(rs.getInt(1));
+        if (i >= 0) {
+          next.remaining[i] -= rs.getInt(2);
+        }
+      }
+      rs.close();
+      rs = pc.prepare(LOAD_CAPACITIES).executeQuery();
+      while (rs.next()) {
+        int i = flights.indexOf(rs.getInt(1));
+        if (i >= 0) {
+          stored[i] = rs.getInt(2);
+        }
+      }
+      rs.close();
+    } finally {
+      pool.release(pc);
+    }
+
+    if (previous != null) {
+      for (int i = 0; i < previous.remaining.length; i++) {
+        synchronized (lock(i)) {
+          previous.retired = true;                      // later changes go to next
+          int j = flights.indexOf(previous.flights.fidAt(i));
+          if (j >= 0) {
+            next.remaining[j] = previous.remaining[i] + flights.capacityAt(j) - previous.flights.capacityAt(i);
+            if (previous.dirty[i]) {
+              markDirty(next, j);
+            }
+          }
+        }
+      }
+    }
+    for (int i = 0; i < next.remaining.length; i++) {
+      if (next.remaining[i] != stored[i]) {
+        markDirty(next, i);
+      }
+    }
+    counts = next;
+    return next;
+  }
+
+  /**
+   * Adds delta to the flight's seats unless that would go below zero.
+   * Returns false if the flight is full.
+   *
+   * @throws SQLException if a seat is taken on a flight that does not exist
+   */
+  private boolean change(int fid, int delta) throws SQLException {
+    while (true) {
+      Counts c = counts();
+      int i = c.flights.indexOf(fid);
+      if (i < 0 && delta > 0) {
+        return true;                                    // the flight was removed, nothing to give back
+      }
+      i = position(c, fid);
+      synchronized (lock(i)) {
+        if (c.retired) {
+          continue;                                     // copied to the next counts, change those instead
+        }
+        int count = c.remaining[i] + delta;
+        if (count < 0) {
+          return false;
+        }
+        c.remaining[i] = count;
+        markDirty(c, i);
+        return true;
+      }
+    }
+  }
+
+  // Queues the flight for the next flush unless it is already queued
+  private void markDirty(Counts c, int i) {
+    synchronized (lock(i)) {
+      if (!c.dirty[i]) {
+        c.dirty[i] = true;
+        c.changed.add(i);
+      }
+    }
+  }
+
+  private Object lock(int i) {
+    return locks[i & (STRIPES - 1)];
+  }
+
+  // The distinct non-zero fids
+  private static int[] distinct(int[] fids) {
+    int[] distinct = new int[fids.length];
+    int n = 0;
+    for (int fid : fids) {
+      if (fid == 0) {
+        continue;
+      }
+      boolean repeated = false;
+      for (int j = 0; j < n && !repeated; j++) {
+        repeated = distinct[j] == fid;
+      }
+      if (!repeated) {
+        distinct[n++] = fid;
+      }
+    }
+    return Arrays.copyOf(distinct, n);
+  }
+
+  private static int position(Counts c, int fid) throws SQLException {
+    int i = c.flights.indexOf(fid);
+    if (i < 0) {
+      throw new SQLException("No flight with fid " + fid);
+    }
+    return i;
+  }
+}
@@ -0,0 +1,131 @@
+package edu.uw.cs;
+
+import com.microsoft.sqlserver.jdbc.SQLServerConnection;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * The Azure SQL Server database configured by the hw1.* settings
+ */
+class SqlServerBackend implements StorageBackend {
+  static final String NAME = "sqlserver";
+
+  private static final String NONCLUSTERED_INDEXES = "SELECT name FROM sys.indexes "
+          + "WHERE object_id = OBJECT_ID(?) AND type_desc = 'NONCLUSTERED' AND is_disabled = 0;";
+
+  private final String connectionUrl;
+
+  SqlServerBackend(Properties configProps) {
+    this.connectionUrl = connectionUrl(configProps);
+  }
+
+  /**
+   * Builds the SQL Server JDBC URL from the hw1.* connection settings, unless
+   * hw1.jdbc_url gives a complete URL
+   */
+  static String connectionUrl(Properties configProps) {
+    String jdbcUrl = configProps.getProperty("hw1.jdbc_url");
+    if (jdbcUrl != null && !jdbcUrl.trim().isEmpty()) {
+      return jdbcUrl.trim();
+    }
+    String serverURL = configProps.getProperty("hw1.server_url");
+    String dbName = configProps.getProperty("hw1.database_name");
+    String adminName = configProps.getProperty("hw1.username");
+    String password = configProps.getProperty("hw1.password");
+    return String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s", serverURL,
+            dbName, adminName, password);
+  }
+
+  @Override
+  public Connection connect() throws SQLException {
+    return DriverManager.getConnection(connectionUrl);
+  }
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public String updateReturning(String table, String assignments, String condition, String column) {
+    return "UPDATE " + table + " SET " + assignments + " OUTPUT inserted." + column + " WHERE " + condition + ";";
+  }
+
+  /**
+   * Needs ALLOW_SNAPSHOT_ISOLATION ON for the database
+   */
+  @Override
+  public int snapshotIsolation() {
+    return SQLServerConnection.TRANSACTION_SNAPSHOT;
+  }
+
+  /**
+   * The estimated plan from SHOWPLAN_TEXT, one operator per line
+   */
+  @Override
+  public List<String> explain(Connection conn, String sql) throws SQLException {
+    Statement showplan = conn.createStatement();
+    showplan.execute("SET SHOWPLAN_TEXT ON");
+    try {
+      PreparedStatement statement = conn.prepareStatement(sql);
+      try {
+        StorageBackend.bindNulls(statement);
+        List<String> plan = new ArrayList<>();
+        boolean isResultSet = statement.execute();
+        while (isResultSet || statement.getUpdateCount() != -1) {
+          if (isResultSet) {
+            ResultSet rs = statement.getResultSet();
+            while (rs.next()) {
+              plan.add(rs.getString(1));
+            }
+            rs.close();
+          }
+          isResultSet = statement.getMoreResults();
+        }
+        return plan;
+      } finally {
+        statement.close();
+      }
+    } finally {
+      showplan.execute("SET SHOWPLAN_TEXT OFF");
+      showplan.close();
+    }
+  }
+
+  @Override
+  public boolean transactionalDdl() {
+    return true;
+  }
+
+  /**
+   * Disables the table's nonclustered indexes; the clustered primary key
+   * stays, or the table could not be written at all
+   */
+  @Override
+  public List<String> suspendIndexes(Connection conn, String table) throws SQLException {
+    List<String> names = new ArrayList<>();
+    PreparedStatement indexes = conn.prepareStatement(NONCLUSTERED_INDEXES);
+    try {
+      indexes.setString(1, table);
+      ResultSet rs = indexes.executeQuery();
+      while (rs.next()) {
+        names.add(rs.getString(1));
+      }
+      rs.close();
+    } finally {
+      indexes.close();
+    }
+    List<String> rebuild = new ArrayList<>();
+    Statement s = conn.createStatement();
+    try {
+      for (String name : names) {
+        s.execute("ALTER INDEX [" + name + "] ON " + table + " DISABLE;");
+        rebuild.add("ALTER INDEX [" + name + "] ON " + table + " REBUILD;");
+      }
+    } finally {
+      s.close();
+    }
+    return rebuild;
+  }
+}
@@ -0,0 +1,88 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Where the application's tables live. The connection pool opens all of its
+ * physical connections through a backend, so Query does not know whether it
+ * talks to SQL Server or to the embedded engine.
+ */
+interface StorageBackend {
+
+  /**
+   * Opens a new physical connection to the database
+   */
+  Connection connect() throws SQLException;
+
+  /**
+   * Short name for logs and stats, e.g. "sqlserver"
+   */
+  String name();
+
+  /**
+   * An UPDATE whose result set holds the given column of every row it
+   * changed, as the row is after the update, so the caller needs no second
+   * query to read it back
+   */
+  String updateReturning(String table, String assignments, String condition, String column);
+
+  /**
+   * The engine's plan for a statement, one line per element, without running
+   * it. Parameters are bound to NULL.
+   */
+  List<String> explain(Connection conn, String sql) throws SQLException;
+
+  /**
+   * The engine's JDBC isolation level for snapshot isolation, where reads see
+   * the data as of the start of the transaction and take no locks
+   */
+  int snapshotIsolation();
+
+  /**
+   * Whether DDL statements take part in transactions, so a schema script can
+   * be rolled back as a whole
+   */
+  boolean transactionalDdl();
+
+  /**
+   * Stops maintaining the table's secondary indexes ahead of a bulk load
+   * into it, which then costs one sorted build per index instead of an index
+   * insert per row
+   *
+   * @return the statements that build the indexes again once it is loaded
+   */
+  List<String> suspendIndexes(Connection conn, String table) throws SQLException;
+
+  /**
+   * Binds NULL, of the type the engine expects, to every parameter
+   */
+  static void bindNulls(PreparedStatement statement) throws SQLException {
+    ParameterMetaData meta = statement.getParameterMetaData();
+    for (int i = 1; i <= meta.getParameterCount(); i++) {
+      int type;
+      try {
+        type = meta.getParameterType(i);
+      } catch (SQLException e) {
+        type = Types.VARCHAR;                          // the engine cannot tell; only the plan's costs depend on it
+      }
+      statement.setNull(i, type);
+    }
+  }
+
+  /**
+   * Picks the backend named by storage.backend (sqlserver by default)
+   *
+   * @throws SQLException if the embedded engine cannot be created and seeded
+   */
+  static StorageBackend fromConfig(Properties configProps) throws SQLException {
+    String backend = configProps.getProperty("storage.backend", SqlServerBackend.NAME).trim();
+    if (backend.equalsIgnoreCase(SqlServerBackend.NAME)) {
+      return new SqlServerBackend(configProps);
+    } else if (backend.equalsIgnoreCase(EmbeddedBackend.NAME)) {
+      return EmbeddedBackend.open(configProps);
+    }
+    throw new IllegalArgumentException("Unknown storage.backend '" + backend + "', expected "
+            + SqlServerBackend.NAME + " or " + EmbeddedBackend.NAME);
+  }
+}
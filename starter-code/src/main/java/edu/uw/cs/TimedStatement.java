@@ -0,0 +1,626 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.math.*;
+import java.net.*;
+import java.sql.*;
+import java.util.Calendar;
+
+/**
+ * A prepared statement that records the latency of every execution in
+ * {@link Metrics} under its SQL. Every other call goes straight to the
+ * statement it wraps.
+ */
+class TimedStatement implements PreparedStatement {
+  private final PreparedStatement target;
+  private final String sql;
+
+  TimedStatement(PreparedStatement target, String sql) {
+    this.target = target;
+    this.sql = sql;
+  }
+
+  private void record(long start, boolean failed) {
+    Metrics.getInstance().statement(sql, System.nanoTime() - start, failed);
+  }
+
+  @Override
+  public void addBatch() throws SQLException {
+    target.addBatch();
+  }
+
+  @Override
+  public void clearParameters() throws SQLException {
+    target.clearParameters();
+  }
+
+  @Override
+  public boolean execute() throws SQLException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      boolean result = target.execute();
+      failed = false;
+      return result;
+    } finally {
+      record(start, failed);
+    }
+  }
+
+  @Override
+  public ResultSet executeQuery() throws SQLException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      ResultSet result = target.executeQuery();
+      failed = false;
+      return result;
+    } finally {
+      record(start, failed);
+    }
+  }
+
+  @Override
+  public int executeUpdate() throws SQLException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      int result = target.executeUpdate();
+      failed = false;
+      return result;
+    } finally {
+      record(start, failed);
+    }
+  }
+
+  @Override
+  public ResultSetMetaData getMetaData() throws SQLException {
+    return target.getMetaData();
+  }
+
+  @Override
+  public ParameterMetaData getParameterMetaData() throws SQLException {
+    return target.getParameterMetaData();
+  }
+
+  @Override
+  public void setArray(int parameterIndex, Array x) throws SQLException {
+    target.setArray(parameterIndex, x);
+  }
+
+  @Override
+  public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
+    target.setAsciiStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+    target.setAsciiStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+    target.setAsciiStream(parameterIndex, x);
+  }
+
+  @Override
+  public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
+    target.setBigDecimal(parameterIndex, x);
+  }
+
+  @Override
+  public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
+    target.setBinaryStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
+    target.setBinaryStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+    target.setBinaryStream(parameterIndex, x);
+  }
+
+  @Override
+  public void setBlob(int parameterIndex, InputStream x, long length) throws SQLException {
+    target.setBlob(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setBlob(int parameterIndex, InputStream x) throws SQLException {
+    target.setBlob(parameterIndex, x);
+  }
+
+  @Override
+  public void setBlob(int parameterIndex, Blob x) throws SQLException {
+    target.setBlob(parameterIndex, x);
+  }
+
+  @Override
+  public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+    target.setBoolean(parameterIndex, x);
+  }
+
+  @Override
+  public void setByte(int parameterIndex, byte x) throws SQLException {
+    target.setByte(parameterIndex, x);
+  }
+
+  @Override
+  public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+    target.setBytes(parameterIndex, x);
+  }
+
+  @Override
+  public void setCharacterStream(int parameterIndex, Reader x, int length) throws SQLException {
+    target.setCharacterStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setCharacterStream(int parameterIndex, Reader x, long length) throws SQLException {
+    target.setCharacterStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setCharacterStream(int parameterIndex, Reader x) throws SQLException {
+    target.setCharacterStream(parameterIndex, x);
+  }
+
+  @Override
+  public void setClob(int parameterIndex, Reader x, long length) throws SQLException {
+    target.setClob(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setClob(int parameterIndex, Reader x) throws SQLException {
+    target.setClob(parameterIndex, x);
+  }
+
+  @Override
+  public void setClob(int parameterIndex, Clob x) throws SQLException {
+    target.setClob(parameterIndex, x);
+  }
+
+  @Override
+  public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
+    target.setDate(parameterIndex, x, cal);
+  }
+
+  @Override
+  public void setDate(int parameterIndex, Date x) throws SQLException {
+    target.setDate(parameterIndex, x);
+  }
+
+  @Override
+  public void setDouble(int parameterIndex, double x) throws SQLException {
+    target.setDouble(parameterIndex, x);
+  }
+
+  @Override
+  public void setFloat(int parameterIndex, float x) throws SQLException {
+    target.setFloat(parameterIndex, x);
+  }
+
+  @Override
+  public void setInt(int parameterIndex, int x) throws SQLException {
+    target.setInt(parameterIndex, x);
+  }
+
+  @Override
+  public void setLong(int parameterIndex, long x) throws SQLException {
+    target.setLong(parameterIndex, x);
+  }
+
+  @Override
+  public void setNCharacterStream(int parameterIndex, Reader x, long length) throws SQLException {
+    target.setNCharacterStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setNCharacterStream(int parameterIndex, Reader x) throws SQLException {
+    target.setNCharacterStream(parameterIndex, x);
+  }
+
+  @Override
+  public void setNClob(int parameterIndex, Reader x, long length) throws SQLException {
+    target.setNClob(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setNClob(int parameterIndex, Reader x) throws SQLException {
+    target.setNClob(parameterIndex, x);
+  }
+
+  @Override
+  public void setNClob(int parameterIndex, NClob x) throws SQLException {
+    target.setNClob(parameterIndex, x);
+  }
+
+  @Override
+  public void setNString(int parameterIndex, String x) throws SQLException {
+    target.setNString(parameterIndex, x);
+  }
+
+  @Override
+  public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+    target.setNull(parameterIndex, sqlType, typeName);
+  }
+
+  @Override
+  public void setNull(int parameterIndex, int sqlType) throws SQLException {
+    target.setNull(parameterIndex, sqlType);
+  }
+
+  @Override
+  public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException {
+    target.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+  }
+
+  @Override
+  public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+    target.setObject(parameterIndex, x, targetSqlType);
+  }
+
+  @Override
+  public void setObject(int parameterIndex, Object x) throws SQLException {
+    target.setObject(parameterIndex, x);
+  }
+
+  @Override
+  public void setRef(int parameterIndex, Ref x) throws SQLException {
+    target.setRef(parameterIndex, x);
+  }
+
+  @Override
+  public void setRowId(int parameterIndex, RowId x) throws SQLException {
+    target.setRowId(parameterIndex, x);
+  }
+
+  @Override
+  public void setSQLXML(int parameterIndex, SQLXML x) throws SQLException {
+    target.setSQLXML(parameterIndex, x);
+  }
+
+  @Override
+  public void setShort(int parameterIndex, short x) throws SQLException {
+    target.setShort(parameterIndex, x);
+  }
+
+  @Override
+  public void setString(int parameterIndex, String x) throws SQLException {
+    target.setString(parameterIndex, x);
+  }
+
+  @Override
+  public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
+    target.setTime(parameterIndex, x, cal);
+  }
+
+  @Override
+  public void setTime(int parameterIndex, Time x) throws SQLException {
+    target.setTime(parameterIndex, x);
+  }
+
+  @Override
+  public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
+    target.setTimestamp(parameterIndex, x, cal);
+  }
+
+  @Override
+  public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+    target.setTimestamp(parameterIndex, x);
+  }
+
+  @Override
+  public void setURL(int parameterIndex, URL x) throws SQLException {
+    target.setURL(parameterIndex, x);
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException {
+    target.setUnicodeStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void addBatch(String sql) throws SQLException {
+    target.addBatch(sql);
+  }
+
+  @Override
+  public void cancel() throws SQLException {
+    target.cancel();
+  }
+
+  @Override
+  public void clearBatch() throws SQLException {
+    target.clearBatch();
+  }
+
+  @Override
+  public void clearWarnings() throws SQLException {
+    target.clearWarnings();
+  }
+
+  @Override
+  public void close() throws SQLException {
+    target.close();
+  }
+
+  @Override
+  public void closeOnCompletion() throws SQLException {
+    target.closeOnCompletion();
+  }
+
+  @Override
+  public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      boolean result = target.execute(sql, columnIndexes);
+      failed = false;
+      return result;
+    } finally {
+      record(start, failed);
+    }
+  }
+
+  @Override
+  public boolean execute(String sql, String[] columnNames) throws SQLException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      boolean result = target.execute(sql, columnNames);
+      failed = false;
+      return result;
+    } finally {
+      record(start, failed);
+    }
+  }
+
+  @Override
+  public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      boolean result = target.execute(sql, autoGeneratedKeys);
+      failed = false;
+      return result;
+    } finally {
+      record(start, failed);
+    }
+  }
+
+  @Override
+  public boolean execute(String sql) throws SQLException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      boolean result = target.execute(sql);
+      failed = false;
+      return result;
+    } finally {
+      record(start, failed);
+    }
+  }
+
+  @Override
+  public int[] executeBatch() throws SQLException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      int[] result = target.executeBatch();
+      failed = false;
+      return result;
+    } finally {
+      record(start, failed);
+    }
+  }
+
+  @Override
+  public ResultSet executeQuery(String sql) throws SQLException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      ResultSet result = target.executeQuery(sql);
+      failed = false;
+      return result;
+    } finally {
+      record(start, failed);
+    }
+  }
+
+  @Override
+  public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      int result = target.executeUpdate(sql, columnIndexes);
+      failed = false;
+      return result;
+    } finally {
+      record(start, failed);
+    }
+  }
+
+  @Override
+  public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      int result = target.executeUpdate(sql, columnNames);
+      failed = false;
+      return result;
+    } finally {
+      record(start, failed);
+    }
+  }
+
+  @Override
+  public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      int result = target.executeUpdate(sql, autoGeneratedKeys);
+      failed = false;
+      return result;
+    } finally {
+      record(start, failed);
+    }
+  }
+
+  @Override
+  public int executeUpdate(String sql) throws SQLException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      int result = target.executeUpdate(sql);
+      failed = false;
+      return result;
+    } finally {
+      record(start, failed);
+    }
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    return target.getConnection();
+  }
+
+  @Override
+  public int getFetchDirection() throws SQLException {
+    return target.getFetchDirection();
+  }
+
+  @Override
+  public int getFetchSize() throws SQLException {
+    return target.getFetchSize();
+  }
+
+  @Override
+  public ResultSet getGeneratedKeys() throws SQLException {
+    return target.getGeneratedKeys();
+  }
+
+  @Override
+  public int getMaxFieldSize() throws SQLException {
+    return target.getMaxFieldSize();
+  }
+
+  @Override
+  public int getMaxRows() throws SQLException {
+    return target.getMaxRows();
+  }
+
+  @Override
+  public boolean getMoreResults() throws SQLException {
+    return target.getMoreResults();
+  }
+
+  @Override
+  public boolean getMoreResults(int current) throws SQLException {
+    return target.getMoreResults(current);
+  }
+
+  @Override
+  public int getQueryTimeout() throws SQLException {
+    return target.getQueryTimeout();
+  }
+
+  @Override
+  public ResultSet getResultSet() throws SQLException {
+    return target.getResultSet();
+  }
+
+  @Override
+  public int getResultSetConcurrency() throws SQLException {
+    return target.getResultSetConcurrency();
+  }
+
+  @Override
+  public int getResultSetHoldability() throws SQLException {
+    return target.getResultSetHoldability();
+  }
+
+  @Override
+  public int getResultSetType() throws SQLException {
+    return target.getResultSetType();
+  }
+
+  @Override
+  public int getUpdateCount() throws SQLException {
+    return target.getUpdateCount();
+  }
+
+  @Override
+  public SQLWarning getWarnings() throws SQLException {
+    return target.getWarnings();
+  }
+
+  @Override
+  public boolean isCloseOnCompletion() throws SQLException {
+    return target.isCloseOnCompletion();
+  }
+
+  @Override
+  public boolean isClosed() throws SQLException {
+    return target.isClosed();
+  }
+
+  @Override
+  public boolean isPoolable() throws SQLException {
+    return target.isPoolable();
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    return target.isWrapperFor(iface);
+  }
+
+  @Override
+  public void setCursorName(String name) throws SQLException {
+    target.setCursorName(name);
+  }
+
+  @Override
+  public void setEscapeProcessing(boolean enable) throws SQLException {
+    target.setEscapeProcessing(enable);
+  }
+
+  @Override
+  public void setFetchDirection(int direction) throws SQLException {
+    target.setFetchDirection(direction);
+  }
+
+  @Override
+  public void setFetchSize(int rows) throws SQLException {
+    target.setFetchSize(rows);
+  }
+
+  @Override
+  public void setMaxFieldSize(int max) throws SQLException {
+    target.setMaxFieldSize(max);
+  }
+
+  @Override
+  public void setMaxRows(int max) throws SQLException {
+    target.setMaxRows(max);
+  }
+
+  @Override
+  public void setPoolable(boolean poolable) throws SQLException {
+    target.setPoolable(poolable);
+  }
+
+  @Override
+  public void setQueryTimeout(int seconds) throws SQLException {
+    target.setQueryTimeout(seconds);
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    return target.unwrap(iface);
+  }
+}
@@ -0,0 +1,179 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the in-memory search against the SQL it replaced, on a small random
+ * Flights table with many equal durations so that ties are broken by fid
+ */
+public class FlightIndexTest {
+  private static final String[] CITIES = { "Seattle WA", "Boston MA", "Chicago IL", "Denver CO", "Austin TX" };
+  private static final int DAYS = 3;
+  private static final int FLIGHTS = 600;
+  private static final int[] KS = { 1, 5, 1000 };
+
+  private static final String CREATE_FLIGHTS = "CREATE TABLE Flights (fid INT PRIMARY KEY, day_of_month INT, "
+          + "carrier_id VARCHAR(7), flight_num INT, origin_city VARCHAR(34), dest_city VARCHAR(34), canceled INT, "
+          + "actual_time INT, capacity INT, price INT);";
+  private static final String INSERT_FLIGHT = "INSERT INTO Flights VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+
+  private static final String SEARCH_DIRECT = "SELECT TOP (?) fid FROM Flights "
+          + "WHERE day_of_month = ? AND origin_city = ? AND dest_city = ? "
+          + "AND canceled <> 1 ORDER BY actual_time ASC, fid ASC;";
+  private static final String SEARCH_INDIRECT = "SELECT TOP (?) F1.fid, F2.fid FROM Flights F1, Flights F2 "
+          + "WHERE F1.day_of_month = ? AND F2.day_of_month = ? AND F1.origin_city = ? AND F1.dest_city = F2.origin_city "
+          + "AND F2.dest_city = ? AND F1.canceled <> 1 AND F2.canceled <> 1 "
+          + "ORDER BY (F1.actual_time + F2.actual_time), F1.fid ASC, F2.fid ASC;";
+
+  private static Connection conn;
+  private static FlightIndex index;
+
+  @BeforeClass
+  public static void setup() throws SQLException {
+    conn = DriverManager.getConnection("jdbc:h2:mem:flight-index-test;MODE=MSSQLServer");
+    conn.createStatement().execute(CREATE_FLIGHTS);
+    Random random = new Random(414);
+    PreparedStatement insert = conn.prepareStatement(INSERT_FLIGHT);
+    List<Integer> fids = new ArrayList<>();
+    for (int fid = 1; fid <= FLIGHTS; fid++) {
+      fids.add(fid);
+    }
+    Collections.shuffle(fids, random);                   // insertion order must not matter
+    for (int fid : fids) {
+      int origin = random.nextInt(CITIES.length);
+      int dest = (origin + 1 + random.nextInt(CITIES.length - 1)) % CITIES.length;
+      insert.setInt(1, fid);
+      insert.setInt(2, 1 + random.nextInt(DAYS));
+      insert.setString(3, "AA");
+      insert.setInt(4, fid);
+      insert.setString(5, CITIES[origin]);
+      insert.setString(6, CITIES[dest]);
+      int canceled = random.nextInt(20);
+      if (canceled == 0) {
+        insert.setNull(7, Types.INTEGER);
+      } else {
+        insert.setInt(7, canceled == 1 ? 1 : 0);
+      }
+      insert.setInt(8, 10 + random.nextInt(15));         // few distinct durations, many ties
+      insert.setInt(9, 1 + random.nextInt(10));
+      insert.setInt(10, 100 + random.nextInt(900));
+      insert.addBatch();
+    }
+    insert.executeBatch();
+    insert.close();
+    index = FlightIndex.build(FlightCache.load(conn));
+  }
+
+  @AfterClass
+  public static void teardown() throws SQLException {
+    conn.close();
+  }
+
+  @Test
+  public void directMatchesSql() throws SQLException {
+    PreparedStatement search = conn.prepareStatement(SEARCH_DIRECT);
+    for (int day = 0; day <= DAYS + 1; day++) {
+      for (String origin : CITIES) {
+        for (String dest : CITIES) {
+          for (int k : KS) {
+            search.setInt(1, k);
+            search.setInt(2, day);
+            search.setString(3, origin);
+            search.setString(4, dest);
+            List<String> expected = fids(search, 1);
+            List<String> actual = new ArrayList<>();
+            for (Query.Flight f : index.direct(day, origin, dest, k)) {
+              actual.add("" + f.fid);
+            }
+            assertEquals(day + " " + origin + " -> " + dest + " top " + k, expected, actual);
+          }
+        }
+      }
+    }
+    search.close();
+  }
+
+  @Test
+  public void oneStopMatchesSql() throws SQLException {
+    PreparedStatement search = conn.prepareStatement(SEARCH_INDIRECT);
+    for (int day = 0; day <= DAYS + 1; day++) {
+      for (String origin : CITIES) {
+        for (String dest : CITIES) {
+          for (int k : KS) {
+            search.setInt(1, k);
+            search.setInt(2, day);
+            search.setInt(3, day);
+            search.setString(4, origin);
+            search.setString(5, dest);
+            List<String> expected = fids(search, 2);
+            String where = day + " " + origin + " -> " + dest + " top " + k;
+            assertEquals(where, expected, fids(index.oneStop(day, origin, dest, k)));
+            if (!origin.equals(dest)) {
+              // the general search agrees with oneStop on two legs
+              assertEquals(where, expected, fids(index.multiHop(day, origin, dest, 2, k, Integer.MAX_VALUE)));
+            }
+          }
+        }
+      }
+    }
+    search.close();
+  }
+
+  @Test
+  public void multiHopIsOrderedAndLoopFree() {
+    for (int day = 1; day <= DAYS; day++) {
+      for (String origin : CITIES) {
+        for (String dest : CITIES) {
+          if (origin.equals(dest)) {
+            continue;
+          }
+          int lastTotal = 0;
+          for (Query.Flight[] itinerary : index.multiHop(day, origin, dest, 4, 200, Integer.MAX_VALUE)) {
+            Set<String> visited = new HashSet<>();
+            visited.add(origin);
+            int total = 0;
+            String at = origin;
+            for (Query.Flight f : itinerary) {
+              assertEquals(at, f.originCity);
+              assertEquals(day, f.dayOfMonth);
+              assertTrue("revisits " + f.destCity, visited.add(f.destCity));
+              total += f.time;
+              at = f.destCity;
+            }
+            assertEquals(dest, at);
+            assertTrue("out of order", total >= lastTotal);
+            lastTotal = total;
+          }
+        }
+      }
+    }
+  }
+
+  private static List<String> fids(PreparedStatement search, int columns) throws SQLException {
+    List<String> fids = new ArrayList<>();
+    ResultSet rs = search.executeQuery();
+    while (rs.next()) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 1; i <= columns; i++) {
+        sb.append(i > 1 ? "," : "").append(rs.getInt(i));
+      }
+      fids.add(sb.toString());
+    }
+    rs.close();
+    return fids;
+  }
+
+  private static List<String> fids(List<Query.Flight[]> itineraries) {
+    List<String> fids = new ArrayList<>();
+    for (Query.Flight[] itinerary : itineraries) {
+      fids.add(itinerary[0].fid + "," + itinerary[1].fid);
+    }
+    return fids;
+  }
+}
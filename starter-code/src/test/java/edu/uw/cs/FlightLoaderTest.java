@@ -0,0 +1,46 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * CSV field splitting used by import-flights
+ */
+public class FlightLoaderTest {
+
+  @Test
+  public void plainFieldsAreTrimmed() {
+    assertEquals(Arrays.asList("1", "AA", "Seattle WA"), FlightLoader.splitCsv("1, AA ,Seattle WA"));
+  }
+
+  @Test
+  public void emptyFieldsAreKept() {
+    assertEquals(Arrays.asList("", "2", "", ""), FlightLoader.splitCsv(",2,,"));
+    assertEquals(Arrays.asList(""), FlightLoader.splitCsv(""));
+  }
+
+  @Test
+  public void quotedCommasStayInTheField() {
+    assertEquals(Arrays.asList("7", "Seattle, WA", "Boston, MA"),
+            FlightLoader.splitCsv("7,\"Seattle, WA\",\"Boston, MA\""));
+  }
+
+  @Test
+  public void doubledQuotesAreOneQuote() {
+    assertEquals(Arrays.asList("say \"hi\"", "x"), FlightLoader.splitCsv("\"say \"\"hi\"\"\",x"));
+    assertEquals(Arrays.asList("\"", ""), FlightLoader.splitCsv("\"\"\"\","));
+  }
+
+  @Test
+  public void emptyQuotedFieldIsEmpty() {
+    assertEquals(Arrays.asList("1", "", "3"), FlightLoader.splitCsv("1,\"\",3"));
+  }
+
+  @Test
+  public void unterminatedQuoteRunsToEndOfLine() {
+    assertEquals(Arrays.asList("1", "Seattle, WA"), FlightLoader.splitCsv("1,\"Seattle, WA"));
+  }
+}
@@ -0,0 +1,55 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hashing and the verified-password cache, with few iterations so the tests
+ * stay fast
+ */
+public class PasswordHasherTest {
+
+  @Test
+  public void verifiesOnlyTheRightPassword() throws Exception {
+    PasswordHasher hasher = new PasswordHasher(1000, 2, 16, 0, 60000);
+    byte[] salt = hasher.salt();
+    byte[] hash = hasher.hash("secret", salt);
+    assertTrue(hasher.verify("user1", "secret", salt, hash));
+    assertFalse(hasher.verify("user1", "Secret", salt, hash));
+    assertFalse(hasher.verify("user1", "secret", hasher.salt(), hash));
+  }
+
+  @Test
+  public void batchMatchesSingleHashes() throws Exception {
+    PasswordHasher hasher = new PasswordHasher(1000, 2, 4, 0, 60000);
+    String[] passwords = new String[20];
+    byte[][] salts = new byte[passwords.length][];
+    for (int i = 0; i < passwords.length; i++) {
+      passwords[i] = "password" + i;
+      salts[i] = hasher.salt();
+    }
+    byte[][] hashes = hasher.hash(passwords, salts);
+    for (int i = 0; i < passwords.length; i++) {
+      assertArrayEquals(hasher.hash(passwords[i], salts[i]), hashes[i]);
+    }
+  }
+
+  @Test
+  public void cacheDoesNotAcceptOtherPasswords() throws Exception {
+    PasswordHasher hasher = new PasswordHasher(1000, 1, 16, 10, 60000);
+    byte[] salt = hasher.salt();
+    byte[] hash = hasher.hash("secret", salt);
+    hasher.remember("user1", "secret", salt, hash);
+    assertTrue(hasher.verify("user1", "secret", salt, hash));
+    assertFalse(hasher.verify("user1", "wrong", salt, hash));
+
+    // a changed stored hash is not matched from the cache
+    byte[] newSalt = hasher.salt();
+    byte[] newHash = hasher.hash("other", newSalt);
+    assertFalse(hasher.verify("user1", "secret", newSalt, newHash));
+    assertTrue(hasher.verify("user1", "other", newSalt, newHash));
+  }
+}
@@ -0,0 +1,87 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reservation IDs stay unique when many threads, and several allocators
+ * leasing from the same counter row as separate processes would, take them
+ * at once
+ */
+public class ReservationIdAllocatorTest {
+  private static final int THREADS = 8;
+  private static final int IDS_PER_THREAD = 500;
+
+  private static ConnectionPool pool;
+
+  @BeforeClass
+  public static void setup() throws SQLException {
+    Properties config = new Properties();
+    config.setProperty("storage.embedded.database", "mem:rid-allocator-test");
+    config.setProperty("storage.embedded.schema", "createTables.sql");
+    config.setProperty("schema.migrations_dir", "migrations");
+    config.setProperty("pool.min_size", "1");
+    config.setProperty("pool.max_size", "4");
+    pool = new ConnectionPool(EmbeddedBackend.open(config), config);
+  }
+
+  @AfterClass
+  public static void teardown() {
+    pool.close();
+  }
+
+  @Test
+  public void idsAreUniqueUnderConcurrency() throws Exception {
+    final ReservationIdAllocator[] allocators = {
+      new ReservationIdAllocator(pool, 7), new ReservationIdAllocator(pool, 13)
+    };
+    final Set<Integer> ids = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+    List<Future<Integer>> duplicates = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      final ReservationIdAllocator allocator = allocators[t % allocators.length];
+      duplicates.add(threads.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          start.await();
+          int seen = 0;
+          for (int i = 0; i < IDS_PER_THREAD; i++) {
+            int id = allocator.next();
+            assertTrue("non-positive id " + id, id > 0);
+            if (!ids.add(id)) {
+              seen++;
+            }
+          }
+          return seen;
+        }
+      }));
+    }
+    start.countDown();
+    int seen = 0;
+    for (Future<Integer> f : duplicates) {
+      seen += f.get(60, TimeUnit.SECONDS);
+    }
+    threads.shutdown();
+    assertEquals(0, seen);
+    assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+  }
+
+  @Test
+  public void releasedIdIsHandedOutAgain() throws SQLException {
+    ReservationIdAllocator allocator = new ReservationIdAllocator(pool, 10);
+    int first = allocator.next();
+    int second = allocator.next();
+    assertEquals(first + 1, second);
+    allocator.release(first);                            // a later id is out, so this one stays used
+    allocator.release(second);
+    assertEquals(second, allocator.next());
+    assertEquals(second + 1, allocator.next());
+  }
+}
@@ -0,0 +1,95 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Hits, eviction and refresh of the shared search cache, over a few flights
+ * out of Seattle
+ */
+public class SearchCacheTest {
+  private static final String[] CITIES = { "Boston MA", "Chicago IL", "Denver CO", "Austin TX" };
+
+  private static FlightCache flights;
+  private static FlightIndex index;
+
+  @BeforeClass
+  public static void setup() throws SQLException {
+    Connection conn = DriverManager.getConnection("jdbc:h2:mem:search-cache-test;MODE=MSSQLServer");
+    try {
+      conn.createStatement().execute("CREATE TABLE Flights (fid INT PRIMARY KEY, day_of_month INT, "
+              + "carrier_id VARCHAR(7), flight_num INT, origin_city VARCHAR(34), dest_city VARCHAR(34), "
+              + "canceled INT, actual_time INT, capacity INT, price INT);");
+      PreparedStatement insert = conn.prepareStatement("INSERT INTO Flights VALUES (?, 1, 'AA', ?, 'Seattle WA', ?, "
+              + "0, ?, 10, 100);");
+      for (int i = 0; i < CITIES.length; i++) {
+        insert.setInt(1, i + 1);
+        insert.setInt(2, i + 1);
+        insert.setString(3, CITIES[i]);
+        insert.setInt(4, 60 + i);
+        insert.executeUpdate();
+      }
+      flights = FlightCache.load(conn);
+      index = FlightIndex.build(flights);
+    } finally {
+      conn.close();
+    }
+  }
+
+  @Test
+  public void repeatedSearchIsAHit() throws SQLException {
+    SearchCache cache = new SearchCache(index, 4, 1000, 10, 60000);
+    Query.Flight[][] first = cache.itineraries("Seattle WA", CITIES[0], 1, 1, 5);
+    assertSame(first, cache.itineraries("Seattle WA", CITIES[0], 1, 1, 5));
+    assertEquals(1, cache.itineraries("Seattle WA", CITIES[0], 1, 1, 1).length);
+    assertEquals(1, cache.misses());
+    assertEquals(2, cache.hits());
+  }
+
+  @Test
+  public void referencedEntriesAreSparedOnce() throws SQLException {
+    SearchCache cache = new SearchCache(index, 4, 1000, 2, 60000);
+    cache.itineraries("Seattle WA", CITIES[0], 1, 1, 5);
+    cache.itineraries("Seattle WA", CITIES[1], 1, 1, 5);
+    cache.itineraries("Seattle WA", CITIES[0], 1, 1, 5);        // marks the first entry
+    cache.itineraries("Seattle WA", CITIES[2], 1, 1, 5);        // evicts the second, not the first
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.evictions());
+
+    long misses = cache.misses();
+    cache.itineraries("Seattle WA", CITIES[0], 1, 1, 5);
+    assertEquals(misses, cache.misses());
+    cache.itineraries("Seattle WA", CITIES[1], 1, 1, 5);
+    assertEquals(misses + 1, cache.misses());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void expiredEntriesAreSearchedAgain() throws SQLException {
+    SearchCache cache = new SearchCache(index, 4, 1000, 10, 0);
+    cache.itineraries("Seattle WA", CITIES[0], 1, 1, 5);
+    cache.itineraries("Seattle WA", CITIES[0], 1, 1, 5);
+    assertEquals(0, cache.hits());
+    assertEquals(2, cache.misses());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void followingANewIndexDropsEntries() throws SQLException {
+    SearchCache cache = new SearchCache(index, 4, 1000, 10, 60000);
+    cache.itineraries("Seattle WA", CITIES[0], 1, 1, 5);
+    cache.itineraries("Seattle WA", CITIES[1], 1, 1, 5);
+    cache.follow(index);
+    assertEquals(2, cache.size());
+    FlightIndex rebuilt = FlightIndex.build(flights);
+    cache.follow(rebuilt);
+    assertEquals(0, cache.size());
+    cache.itineraries("Seattle WA", CITIES[0], 1, 1, 5);
+    assertEquals(3, cache.misses());
+  }
+}